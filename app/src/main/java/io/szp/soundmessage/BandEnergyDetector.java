@@ -0,0 +1,95 @@
+package io.szp.soundmessage;
+
+// Running in-band power of a stream: a biquad band-pass filter followed by an exponential
+// average of the squared output. The detector opens when the level rises above openLevel
+// (dBFS) and closes when it falls below openLevel - hysteresis.
+public class BandEnergyDetector {
+    private static final float TIME_CONSTANT = 0.01f;
+
+    private final float b0, b2, a1, a2;
+    private final float smoothing;
+    private final float openPower, closePower;
+
+    private float x1, x2, y1, y2;
+    private float power;
+    private boolean open;
+    private long position;
+    private long lastOpenPosition = -1;
+
+    public BandEnergyDetector(float sampleFreq, float lowFreq, float highFreq,
+                              float openLevel, float hysteresis) {
+        if (sampleFreq <= 0)
+            throw new IllegalArgumentException("Non-positive sample frequency");
+        // Keep the band inside (0, sampleFreq / 2) whatever order the edges come in
+        double low = Math.max(Math.min(lowFreq, highFreq), 1);
+        double high = Math.min(Math.max(lowFreq, highFreq), 0.49 * sampleFreq);
+        if (high <= low)
+            high = Math.min(low + 1, 0.49 * sampleFreq);
+        // Constant 0 dB peak gain band-pass (RBJ cookbook)
+        double centerFreq = Math.sqrt(low * high);
+        double q = centerFreq / Math.max(high - low, 1);
+        double w0 = 2 * Math.PI * centerFreq / sampleFreq;
+        double alpha = Math.sin(w0) / (2 * q);
+        double a0 = 1 + alpha;
+        b0 = (float) (alpha / a0);
+        b2 = (float) (-alpha / a0);
+        a1 = (float) (-2 * Math.cos(w0) / a0);
+        a2 = (float) ((1 - alpha) / a0);
+        smoothing = (float) (1 - Math.exp(-1 / (TIME_CONSTANT * sampleFreq)));
+        openPower = (float) Math.pow(10, openLevel / 10);
+        closePower = (float) Math.pow(10, (openLevel - Math.max(hysteresis, 0)) / 10);
+    }
+
+    public void process(float[] input, int offset, int length) {
+        float x1 = this.x1, x2 = this.x2, y1 = this.y1, y2 = this.y2, power = this.power;
+        boolean open = this.open;
+        long lastOpen = lastOpenPosition;
+        for (int i = offset; i < offset + length; ++i) {
+            float x0 = input[i];
+            float y0 = b0 * x0 + b2 * x2 - a1 * y1 - a2 * y2;
+            x2 = x1;
+            x1 = x0;
+            y2 = y1;
+            y1 = y0;
+            power += smoothing * (y0 * y0 - power);
+            if (open) {
+                if (power < closePower)
+                    open = false;
+            } else if (power > openPower) {
+                open = true;
+            }
+            if (open)
+                lastOpen = position + i - offset;
+        }
+        this.x1 = x1;
+        this.x2 = x2;
+        this.y1 = y1;
+        this.y2 = y2;
+        this.power = power;
+        this.open = open;
+        lastOpenPosition = lastOpen;
+        position += length;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    // Absolute position of the last sample at which the detector was open, -1 if never
+    public long lastOpenPosition() {
+        return lastOpenPosition;
+    }
+
+    // Current in-band level in dBFS
+    public float level() {
+        return (float) (10 * Math.log10(power));
+    }
+
+    public void reset() {
+        x1 = x2 = y1 = y2 = 0;
+        power = 0;
+        open = false;
+        position = 0;
+        lastOpenPosition = -1;
+    }
+}
@@ -0,0 +1,111 @@
+package io.szp.soundmessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+// Renders texts to WAV or raw PCM files with the modulation of the sender, without an audio
+// device. Packets are synthesized and written through the file channel a chunk at a time, so
+// a file of any length takes constant memory. The samples are those the sender plays.
+public class BatchEncoder {
+    // Samples synthesized and written at a time
+    private static final int CHUNK_LEN = 8192;
+    private static final int WAV_HEADER_BYTES = 44;
+    private static final long MAX_WAV_DATA_BYTES = 0xFFFFFFFFL - WAV_HEADER_BYTES;
+
+    private final ModemConfig config;
+    // 32-bit float samples instead of 16-bit
+    private final boolean floating;
+    private final OFDMModulator modulator;
+    private final float[] chunk = new float[CHUNK_LEN];
+    // Only for 16-bit samples
+    private final short[] data = new short[CHUNK_LEN];
+    private final ByteBuffer bytes;
+
+    public BatchEncoder(ModemConfig config, boolean floating) {
+        this.config = config;
+        this.floating = floating;
+        modulator = new OFDMModulator(config);
+        bytes = ByteBuffer.allocateDirect(CHUNK_LEN * sampleBytes())
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private int sampleBytes() {
+        return floating ? 4 : 2;
+    }
+
+    // Write the packets of the texts one after another, repeated repeatNum times, into the
+    // file. A .wav file gets a header, anything else is raw mono PCM. Returns the number of
+    // samples written.
+    public long encode(List<String> texts, int repeatNum, File file) throws IOException {
+        boolean wav = file.getName().toLowerCase(Locale.US).endsWith(".wav");
+        try (RandomAccessFile stream = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = stream.getChannel();
+            channel.truncate(0);
+            long position = wav ? WAV_HEADER_BYTES : 0;
+            long sampleNum = 0;
+            for (int r = 0; r < repeatNum; ++r) {
+                for (String text: texts) {
+                    modulator.begin(SignalProcessing.encodeText(text, config.bits,
+                            config.dataSubcarrierNum));
+                    int count;
+                    while ((count = modulator.read(chunk, 0, CHUNK_LEN)) > 0) {
+                        if (wav && (sampleNum + count) * sampleBytes() > MAX_WAV_DATA_BYTES)
+                            throw new IOException("Too long for a WAV file");
+                        position += write(channel, position, count);
+                        sampleNum += count;
+                    }
+                }
+            }
+            // The sizes are only known at the end
+            if (wav)
+                writeWavHeader(channel, sampleNum * sampleBytes());
+            return sampleNum;
+        }
+    }
+
+    private int write(FileChannel channel, long position, int count) throws IOException {
+        bytes.clear();
+        if (floating) {
+            for (int i = 0; i < count; ++i)
+                bytes.putFloat(chunk[i] * OFDMModulator.OUTPUT_GAIN);
+        } else {
+            OFDMModulator.toPCM16(chunk, 0, data, 0, count);
+            for (int i = 0; i < count; ++i)
+                bytes.putShort(data[i]);
+        }
+        bytes.flip();
+        int size = bytes.remaining();
+        while (bytes.hasRemaining())
+            position += channel.write(bytes, position);
+        return size;
+    }
+
+    private void writeWavHeader(FileChannel channel, long dataBytes) throws IOException {
+        int sampleFreq = Math.round(config.sampleFreq);
+        ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put("RIFF".getBytes(StandardCharsets.US_ASCII));
+        header.putInt((int) (WAV_HEADER_BYTES - 8 + dataBytes));
+        header.put("WAVEfmt ".getBytes(StandardCharsets.US_ASCII));
+        header.putInt(16);
+        // PCM or IEEE float, mono
+        header.putShort((short) (floating ? 3 : 1));
+        header.putShort((short) 1);
+        header.putInt(sampleFreq);
+        header.putInt(sampleFreq * sampleBytes());
+        header.putShort((short) sampleBytes());
+        header.putShort((short) (8 * sampleBytes()));
+        header.put("data".getBytes(StandardCharsets.US_ASCII));
+        header.putInt((int) dataBytes);
+        header.flip();
+        long position = 0;
+        while (header.hasRemaining())
+            position += channel.write(header, position);
+    }
+}
@@ -0,0 +1,12 @@
+package io.szp.soundmessage;
+
+public class DemodulatedPacket {
+    public final int[] data;
+    // Absolute stream position of the first data symbol
+    public final long position;
+
+    public DemodulatedPacket(int[] data, long position) {
+        this.data = data;
+        this.position = position;
+    }
+}
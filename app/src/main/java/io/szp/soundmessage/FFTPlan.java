@@ -0,0 +1,432 @@
+package io.szp.soundmessage;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+public abstract class FFTPlan {
+    private static final ConcurrentHashMap<Integer, FFTPlan> plans = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, FFTPlan> bluesteinPlans =
+            new ConcurrentHashMap<>();
+
+    protected final int n;
+
+    protected FFTPlan(int n) {
+        this.n = n;
+    }
+
+    // Plans are immutable once built, so a single instance per size is shared by all threads
+    public static FFTPlan get(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("Negative length");
+        FFTPlan plan = plans.get(n);
+        if (plan == null) {
+            FFTPlan newPlan = create(n);
+            plan = plans.putIfAbsent(n, newPlan);
+            if (plan == null)
+                plan = newPlan;
+        }
+        return plan;
+    }
+
+    private static FFTPlan create(int n) {
+        if ((n & (n - 1)) == 0) // Is power of 2 (or 0)
+            return new Radix2(n);
+        if (isSmooth(n))
+            return new MixedRadix(n);
+        return new Bluestein(n);
+    }
+
+    // Bluestein plan regardless of the factors of n
+    public static FFTPlan getBluestein(int n) {
+        if (n < 0)
+            throw new IllegalArgumentException("Negative length");
+        FFTPlan plan = bluesteinPlans.get(n);
+        if (plan == null) {
+            FFTPlan newPlan = new Bluestein(n);
+            plan = bluesteinPlans.putIfAbsent(n, newPlan);
+            if (plan == null)
+                plan = newPlan;
+        }
+        return plan;
+    }
+
+    // Whether n only has the factors that MixedRadix can transform directly
+    public static boolean isSmooth(int n) {
+        if (n < 1)
+            return false;
+        for (int p: SignalProcessing.FACTORS) {
+            while (n % p == 0)
+                n /= p;
+        }
+        return n == 1;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    // Transform the first n elements in place, arrays may be longer than n
+    public abstract void transform(float[] real, float[] imag);
+
+    public void inverse(float[] real, float[] imag) {
+        transform(imag, real);
+        float scale = 1.0f / n;
+        for (int i = 0; i < n; ++i) { // Scaling (because the forward transform omits it)
+            real[i] *= scale;
+            imag[i] *= scale;
+        }
+    }
+
+    protected void checkLength(float[] real, float[] imag) {
+        if (real.length < n || imag.length < n)
+            throw new IllegalArgumentException("Input shorter than plan");
+    }
+
+    private static class Radix2 extends FFTPlan {
+        private final float[] cosTable, sinTable;
+        private final int[] swapFrom, swapTo;
+
+        Radix2(int n) {
+            super(n);
+            int levels = Integer.numberOfTrailingZeros(Math.max(n, 1));
+            cosTable = new float[n / 2];
+            sinTable = new float[n / 2];
+            for (int i = 0; i < n / 2; ++i) {
+                double angle = 2 * Math.PI * i / n;
+                cosTable[i] = (float) Math.cos(angle);
+                sinTable[i] = (float) Math.sin(angle);
+            }
+            // Bit-reversed addressing permutation, stored as the list of swaps to perform
+            int swapNum = 0;
+            for (int i = 0; i < n; ++i) {
+                if ((Integer.reverse(i) >>> (32 - levels)) > i)
+                    ++swapNum;
+            }
+            swapFrom = new int[swapNum];
+            swapTo = new int[swapNum];
+            for (int i = 0, k = 0; i < n; ++i) {
+                int j = Integer.reverse(i) >>> (32 - levels);
+                if (j > i) {
+                    swapFrom[k] = i;
+                    swapTo[k++] = j;
+                }
+            }
+        }
+
+        @Override
+        public void transform(float[] real, float[] imag) {
+            checkLength(real, imag);
+            if (n <= 1)
+                return;
+            for (int k = 0; k < swapFrom.length; ++k) {
+                int i = swapFrom[k], j = swapTo[k];
+                float temp = real[i];
+                real[i] = real[j];
+                real[j] = temp;
+                temp = imag[i];
+                imag[i] = imag[j];
+                imag[j] = temp;
+            }
+            // Cooley-Tukey decimation-in-time radix-2 FFT
+            for (int size = 2; size <= n; size *= 2) {
+                int halfsize = size / 2;
+                int tablestep = n / size;
+                for (int i = 0; i < n; i += size) {
+                    for (int j = i, k = 0; j < i + halfsize; j++, k += tablestep) {
+                        float tpre = real[j + halfsize] * cosTable[k] + imag[j + halfsize] * sinTable[k];
+                        float tpim = -real[j + halfsize] * sinTable[k] + imag[j + halfsize] * cosTable[k];
+                        real[j + halfsize] = real[j] - tpre;
+                        imag[j + halfsize] = imag[j] - tpim;
+                        real[j] += tpre;
+                        imag[j] += tpim;
+                    }
+                }
+            }
+        }
+    }
+
+    private static class MixedRadix extends FFTPlan {
+        private final int[] radices;
+        private final int[] permutation;
+        private final float[] cosTable, sinTable;
+        // Per stage twiddles, indexed by (r - 1) * m + k
+        private final float[][] stageCos, stageSin;
+        // cos(2 pi j / p), sin(2 pi j / p) for the odd radices
+        private final float[][] radixCos, radixSin;
+
+        private final ThreadLocal<float[][]> workspace = new ThreadLocal<float[][]>() {
+            @Override
+            protected float[][] initialValue() {
+                return new float[][] { new float[n], new float[n],
+                        new float[8], new float[8], new float[8], new float[8] };
+            }
+        };
+
+        MixedRadix(int n) {
+            super(n);
+            // Radix 4 first, then the remaining 2, 3, 5 and 7
+            int[] temp = new int[32];
+            int count = 0, rest = n;
+            while (rest % 4 == 0) {
+                temp[count++] = 4;
+                rest /= 4;
+            }
+            for (int p: SignalProcessing.FACTORS) {
+                while (rest % p == 0) {
+                    temp[count++] = p;
+                    rest /= p;
+                }
+            }
+            if (rest != 1)
+                throw new IllegalArgumentException("Length has unsupported factors");
+            radices = new int[count];
+            System.arraycopy(temp, 0, radices, 0, count);
+
+            cosTable = new float[n];
+            sinTable = new float[n];
+            for (int i = 0; i < n; ++i) {
+                double angle = 2 * Math.PI * i / n;
+                cosTable[i] = (float) Math.cos(angle);
+                sinTable[i] = (float) Math.sin(angle);
+            }
+
+            // Mixed-radix digit reversal: input index r1 + p1 * r2 + p1 * p2 * r3 + ...
+            // goes to position r1 * (n / p1) + r2 * (n / (p1 * p2)) + ...
+            permutation = new int[n];
+            for (int i = 0; i < n; ++i) {
+                int digits = i, position = 0, span = n;
+                for (int p: radices) {
+                    span /= p;
+                    position += (digits % p) * span;
+                    digits /= p;
+                }
+                permutation[position] = i;
+            }
+
+            stageCos = new float[count][];
+            stageSin = new float[count][];
+            for (int stage = count - 1, size = 1; stage >= 0; --stage) {
+                int p = radices[stage], m = size;
+                size *= p;
+                int step = n / size;
+                stageCos[stage] = new float[(p - 1) * m];
+                stageSin[stage] = new float[(p - 1) * m];
+                for (int r = 1; r < p; ++r) {
+                    for (int k = 0; k < m; ++k) {
+                        stageCos[stage][(r - 1) * m + k] = cosTable[r * k * step];
+                        stageSin[stage][(r - 1) * m + k] = sinTable[r * k * step];
+                    }
+                }
+            }
+
+            radixCos = new float[8][];
+            radixSin = new float[8][];
+            for (int p: new int[] { 3, 5, 7 }) {
+                radixCos[p] = new float[p];
+                radixSin[p] = new float[p];
+                for (int j = 0; j < p; ++j) {
+                    radixCos[p][j] = (float) Math.cos(2 * Math.PI * j / p);
+                    radixSin[p][j] = (float) Math.sin(2 * Math.PI * j / p);
+                }
+            }
+        }
+
+        @Override
+        public void transform(float[] real, float[] imag) {
+            checkLength(real, imag);
+            float[][] work = workspace.get();
+            float[] xr = work[0], xi = work[1];
+            for (int i = 0; i < n; ++i) {
+                int j = permutation[i];
+                xr[i] = real[j];
+                xi[i] = imag[j];
+            }
+            // Decimation-in-time, innermost (smallest) sub-transforms first
+            for (int stage = radices.length - 1, size = 1; stage >= 0; --stage) {
+                int p = radices[stage], m = size;
+                size *= p;
+                float[] wc = stageCos[stage], ws = stageSin[stage];
+                switch (p) {
+                    case 2:
+                        butterfly2(xr, xi, size, m, wc, ws);
+                        break;
+                    case 4:
+                        butterfly4(xr, xi, size, m, wc, ws);
+                        break;
+                    default:
+                        butterflyOdd(xr, xi, size, m, p, wc, ws, work);
+                        break;
+                }
+            }
+            System.arraycopy(xr, 0, real, 0, n);
+            System.arraycopy(xi, 0, imag, 0, n);
+        }
+
+        private void butterfly2(float[] xr, float[] xi, int size, int m, float[] wc, float[] ws) {
+            for (int base = 0; base < n; base += size) {
+                for (int k = 0; k < m; ++k) {
+                    int i0 = base + k, i1 = i0 + m;
+                    float c = wc[k], s = ws[k];
+                    float yr = xr[i1] * c + xi[i1] * s;
+                    float yi = -xr[i1] * s + xi[i1] * c;
+                    xr[i1] = xr[i0] - yr;
+                    xi[i1] = xi[i0] - yi;
+                    xr[i0] += yr;
+                    xi[i0] += yi;
+                }
+            }
+        }
+
+        private void butterfly4(float[] xr, float[] xi, int size, int m, float[] wc, float[] ws) {
+            for (int base = 0; base < n; base += size) {
+                for (int k = 0; k < m; ++k) {
+                    int i0 = base + k, i1 = i0 + m, i2 = i1 + m, i3 = i2 + m;
+                    float c1 = wc[k], s1 = ws[k];
+                    float c2 = wc[m + k], s2 = ws[m + k];
+                    float c3 = wc[2 * m + k], s3 = ws[2 * m + k];
+                    float y0r = xr[i0], y0i = xi[i0];
+                    float y1r = xr[i1] * c1 + xi[i1] * s1, y1i = -xr[i1] * s1 + xi[i1] * c1;
+                    float y2r = xr[i2] * c2 + xi[i2] * s2, y2i = -xr[i2] * s2 + xi[i2] * c2;
+                    float y3r = xr[i3] * c3 + xi[i3] * s3, y3i = -xr[i3] * s3 + xi[i3] * c3;
+                    float t0r = y0r + y2r, t0i = y0i + y2i;
+                    float t1r = y0r - y2r, t1i = y0i - y2i;
+                    float t2r = y1r + y3r, t2i = y1i + y3i;
+                    float t3r = y1r - y3r, t3i = y1i - y3i;
+                    xr[i0] = t0r + t2r;
+                    xi[i0] = t0i + t2i;
+                    xr[i2] = t0r - t2r;
+                    xi[i2] = t0i - t2i;
+                    // X1 = t1 - i * t3, X3 = t1 + i * t3
+                    xr[i1] = t1r + t3i;
+                    xi[i1] = t1i - t3r;
+                    xr[i3] = t1r - t3i;
+                    xi[i3] = t1i + t3r;
+                }
+            }
+        }
+
+        private void butterflyOdd(float[] xr, float[] xi, int size, int m, int p,
+                                  float[] wc, float[] ws, float[][] work) {
+            float[] yr = work[2], yi = work[3], sr = work[4], si = work[5];
+            float[] pc = radixCos[p], ps = radixSin[p];
+            int half = p / 2;
+            for (int base = 0; base < n; base += size) {
+                for (int k = 0; k < m; ++k) {
+                    yr[0] = xr[base + k];
+                    yi[0] = xi[base + k];
+                    for (int r = 1; r < p; ++r) {
+                        int index = base + r * m + k, w = (r - 1) * m + k;
+                        yr[r] = xr[index] * wc[w] + xi[index] * ws[w];
+                        yi[r] = -xr[index] * ws[w] + xi[index] * wc[w];
+                    }
+                    // Sums and differences of symmetric pairs, stored as sr/si[r] and yr/yi[r]
+                    float dcr = yr[0], dci = yi[0];
+                    for (int r = 1; r <= half; ++r) {
+                        float ar = yr[r], ai = yi[r], br = yr[p - r], bi = yi[p - r];
+                        sr[r] = ar + br;
+                        si[r] = ai + bi;
+                        yr[r] = ar - br;
+                        yi[r] = ai - bi;
+                        dcr += sr[r];
+                        dci += si[r];
+                    }
+                    xr[base + k] = dcr;
+                    xi[base + k] = dci;
+                    for (int q = 1; q <= half; ++q) {
+                        float ar = yr[0], ai = yi[0], br = 0, bi = 0;
+                        for (int r = 1, t = q; r <= half; ++r, t += q) {
+                            if (t >= p)
+                                t -= p;
+                            ar += sr[r] * pc[t];
+                            ai += si[r] * pc[t];
+                            br += yr[r] * ps[t];
+                            bi += yi[r] * ps[t];
+                        }
+                        // X[q] = A - i * B, X[p - q] = A + i * B
+                        xr[base + q * m + k] = ar + bi;
+                        xi[base + q * m + k] = ai - br;
+                        xr[base + (p - q) * m + k] = ar - bi;
+                        xi[base + (p - q) * m + k] = ai + br;
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Bluestein extends FFTPlan {
+        private final FFTPlan convolutionPlan;
+        private final float[] chirpCos, chirpSin;
+        // FFT of the chirp sequence b, already scaled by 1 / m for the inverse transform
+        private final float[] kernelReal, kernelImag;
+
+        private final ThreadLocal<float[][]> workspace = new ThreadLocal<float[][]>() {
+            @Override
+            protected float[][] initialValue() {
+                int m = convolutionPlan.size();
+                return new float[][] { new float[m], new float[m] };
+            }
+        };
+
+        Bluestein(int n) {
+            super(n);
+            // Find a power-of-2 convolution length m such that m >= n * 2 - 1
+            int m = 1;
+            while (m < n * 2 - 1)
+                m *= 2;
+            convolutionPlan = FFTPlan.get(m);
+            chirpCos = new float[n];
+            chirpSin = new float[n];
+            for (int i = 0; i < n; ++i) {
+                long j = (long) i * i % (n * 2); // This is more accurate than j = i * i
+                double angle = Math.PI * j / n;
+                chirpCos[i] = (float) Math.cos(angle);
+                chirpSin[i] = (float) Math.sin(angle);
+            }
+            kernelReal = new float[m];
+            kernelImag = new float[m];
+            if (n > 0) {
+                kernelReal[0] = chirpCos[0];
+                kernelImag[0] = chirpSin[0];
+            }
+            for (int i = 1; i < n; ++i) {
+                kernelReal[i] = kernelReal[m - i] = chirpCos[i];
+                kernelImag[i] = kernelImag[m - i] = chirpSin[i];
+            }
+            convolutionPlan.transform(kernelReal, kernelImag);
+            float scale = 1.0f / m;
+            for (int i = 0; i < m; ++i) {
+                kernelReal[i] *= scale;
+                kernelImag[i] *= scale;
+            }
+        }
+
+        @Override
+        public void transform(float[] real, float[] imag) {
+            checkLength(real, imag);
+            int m = convolutionPlan.size();
+            float[][] work = workspace.get();
+            float[] aReal = work[0], aImag = work[1];
+            // Preprocessing
+            for (int i = 0; i < n; ++i) {
+                aReal[i] = real[i] * chirpCos[i] + imag[i] * chirpSin[i];
+                aImag[i] = -real[i] * chirpSin[i] + imag[i] * chirpCos[i];
+            }
+            for (int i = n; i < m; ++i) {
+                aReal[i] = 0;
+                aImag[i] = 0;
+            }
+            // Convolution, the inverse is a forward transform on swapped parts
+            convolutionPlan.transform(aReal, aImag);
+            for (int i = 0; i < m; ++i) {
+                float temp = aReal[i] * kernelReal[i] - aImag[i] * kernelImag[i];
+                aImag[i] = aImag[i] * kernelReal[i] + aReal[i] * kernelImag[i];
+                aReal[i] = temp;
+            }
+            convolutionPlan.transform(aImag, aReal);
+            // Postprocessing
+            for (int i = 0; i < n; ++i) {
+                real[i] = aReal[i] * chirpCos[i] + aImag[i] * chirpSin[i];
+                imag[i] = -aReal[i] * chirpSin[i] + aImag[i] * chirpCos[i];
+            }
+        }
+    }
+}
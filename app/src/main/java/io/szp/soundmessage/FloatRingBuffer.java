@@ -0,0 +1,139 @@
+package io.szp.soundmessage;
+
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Lock-free ring of samples between exactly one producer thread and one consumer thread.
+// The producer never waits: samples that do not fit are dropped and counted as an overrun.
+public class FloatRingBuffer {
+    private final float[] buffer;
+    private final int mask;
+    // Total samples written and read
+    private final AtomicLong writePosition = new AtomicLong();
+    private final AtomicLong readPosition = new AtomicLong();
+    private final AtomicLong overrunSamples = new AtomicLong();
+    private final AtomicLong overrunNum = new AtomicLong();
+    private volatile Thread waiter;
+
+    // Capacity is rounded up to a power of two
+    public FloatRingBuffer(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("Invalid capacity");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        buffer = new float[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return buffer.length;
+    }
+
+    public int available() {
+        return (int) (writePosition.get() - readPosition.get());
+    }
+
+    // Samples dropped by the producer so far
+    public long overrunSamples() {
+        return overrunSamples.get();
+    }
+
+    // Writes that dropped samples so far
+    public long overrunNum() {
+        return overrunNum.get();
+    }
+
+    // Producer side, returns the number of samples written
+    public int write(float[] input, int offset, int length) {
+        long position = writePosition.get();
+        int count = reserve(position, length);
+        int start = (int) position & mask;
+        int first = Math.min(count, buffer.length - start);
+        System.arraycopy(input, offset, buffer, start, first);
+        System.arraycopy(input, offset + first, buffer, 0, count - first);
+        publish(position, count);
+        return count;
+    }
+
+    // Producer side, writes input[position, position + length), the position is advanced past
+    // the samples written
+    public int write(FloatBuffer input, int length) {
+        long position = writePosition.get();
+        int count = reserve(position, length);
+        int start = (int) position & mask;
+        int first = Math.min(count, buffer.length - start);
+        input.get(buffer, start, first);
+        input.get(buffer, 0, count - first);
+        publish(position, count);
+        return count;
+    }
+
+    // Producer side, writes input[position, position + length) * scale, the position is
+    // advanced past the samples written
+    public int write(ShortBuffer input, int length, float scale) {
+        long position = writePosition.get();
+        int count = reserve(position, length);
+        for (int i = 0; i < count; ++i)
+            buffer[(int) (position + i) & mask] = input.get() * scale;
+        publish(position, count);
+        return count;
+    }
+
+    private int reserve(long position, int length) {
+        int free = buffer.length - (int) (position - readPosition.get());
+        int count = Math.min(length, free);
+        if (count < length) {
+            overrunSamples.addAndGet(length - count);
+            overrunNum.incrementAndGet();
+        }
+        return count;
+    }
+
+    private void publish(long position, int count) {
+        // A full write, so that a consumer that has just registered is seen
+        writePosition.set(position + count);
+        Thread thread = waiter;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    // Consumer side, returns the number of samples read
+    public int read(float[] output, int offset, int length) {
+        long position = readPosition.get();
+        int count = Math.min(length, (int) (writePosition.get() - position));
+        int start = (int) position & mask;
+        int first = Math.min(count, buffer.length - start);
+        System.arraycopy(buffer, start, output, offset, first);
+        System.arraycopy(buffer, 0, output, offset + first, count - first);
+        readPosition.lazySet(position + count);
+        return count;
+    }
+
+    // Consumer side, waits until count samples are available, the timeout passes or the thread
+    // is interrupted
+    public boolean awaitAvailable(int count, long timeoutNanos) {
+        if (available() >= count)
+            return true;
+        long deadline = System.nanoTime() + timeoutNanos;
+        waiter = Thread.currentThread();
+        try {
+            while (available() < count) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                    return available() >= count;
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
+        } finally {
+            waiter = null;
+        }
+    }
+
+    // Only safe while neither side is running
+    public void clear() {
+        readPosition.set(writePosition.get());
+    }
+}
@@ -0,0 +1,3 @@
+package io.szp.soundmessage;
+
+public enum LogLevel { ERROR, WARN, INFO, DEBUG }
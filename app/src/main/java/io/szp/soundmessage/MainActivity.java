@@ -11,10 +11,10 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.media.AudioFormat;
-import android.media.AudioManager;
 import android.media.AudioRecord;
 import android.media.AudioTrack;
 import android.media.MediaRecorder;
+import android.os.Build;
 import android.os.Bundle;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -23,11 +23,11 @@ import android.widget.EditText;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
-import java.util.ArrayDeque;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
-import java.util.Deque;
-import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -37,15 +37,19 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
     private static final int CHANNEL_IN_CONFIG = AudioFormat.CHANNEL_IN_MONO;
     private static final int CHANNEL_OUT_CONFIG = AudioFormat.CHANNEL_OUT_MONO;
     private static final int AUDIO_IN_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
-    private static final int AUDIO_OUT_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
+    private static final int AUDIO_IN_FLOAT_FORMAT = AudioFormat.ENCODING_PCM_FLOAT;
+    private static final int SHORT_BYTES = 2;
+    private static final int FLOAT_BYTES = 4;
     private static final float SHORT_MAX = 32768;
     private static final String START_INPUT_TEXT = "inputText";
     private static final String START_CONTENT_TEXT = "contentText";
     private static final String[] LOG_LEVEL_STRINGS = new String[] {
             "error", "warn", "info", "debug"
     };
-    private enum LogLevel { ERROR, WARN, INFO, DEBUG };
-    private static final float SOUND_AMPLIFIER = 300;
+    // Seconds of audio the capture thread can run ahead of processing
+    private static final int CAPTURE_BUFFER_SECONDS = 4;
+    // How long stopping the receiver waits for the capture thread, a read returns after a buffer
+    private static final long CAPTURE_STOP_WAIT_MILLIS = 1000;
 
     // Default value
     // UI Parameter
@@ -60,6 +64,7 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
     public int pilotSubcarrierNum = 1;
     public int symbolLen = 2048;
     public float cyclicPrefixFactor = 0.1f;
+    public int decimationFactor = 1;
 
     private float sampleFreq = 44100;
     private float carrierFreq = 4000;
@@ -72,35 +77,16 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
     private float startEndThreshold = 10;
     private float lagStdevLimit = 10;
     private int symbolNumLimit = 100;
+    private float squelchLevel = -70;
+    private float squelchHysteresis = 6;
+    private boolean headerTermination = false;
 
     // Sender Parameter
     private float spaceFactor = 1;
+    private float senderIdleTimeout = 5;
 
-    // Computed parameter
-    public int bits;
-    public SignalProcessing.PSK pskMethod;
-    public int dataSubcarrierNum;
-    public int[] pilotSubcarrierIndices;
-    public int[] dataSubcarrierIndices;
-    public int cyclicPrefixLen;
-    public int cyclicPrefixStart;
-    public int cyclicPrefixEnd;
-    public int realSymbolLen;
-
-    private float[] startPreambleSymbol, endPreambleSymbol;
-
-    private int signalBufferLenLimit;
-
-    // Receiver data
-    private float[] previousWindow;
-    private List<Float> signalBuffer;
-    private boolean started;
-    private Deque<Integer> starts;
-    private Deque<Integer> ends;
-
-    // Sender data
-    private final Object sendBufferMutex = new Object();
-    private float[] sendBuffer = new float[0];
+    // Snapshot of the parameters above
+    private ModemConfig config;
 
     // Other fields
     private boolean permissionToRecordAccepted = false;
@@ -109,9 +95,11 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
     private boolean receiverEnabled;
 
     private AudioRecord receiver;
-    private AtomicBoolean receiverOn = new AtomicBoolean(false);
+    private ReceiverPipeline receiverPipeline;
+    private CaptureRunnable captureRunnable;
+    private Thread captureThread;
 
-    private AtomicBoolean senderOn = new AtomicBoolean(false);
+    private SenderPipeline senderPipeline;
 
     private EditText inputText;
     private TextView contentText;
@@ -155,6 +143,8 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
                 getString(R.string.symbol_len_key), "2048"));
         cyclicPrefixFactor = Float.parseFloat(preferences.getString(
                 getString(R.string.cyclic_prefix_factor_key), "0.1"));
+        decimationFactor = Integer.parseInt(preferences.getString(
+                getString(R.string.decimation_factor_key), "1"));
         sampleFreq = Float.parseFloat(preferences.getString(
                 getString(R.string.sample_freq_key), "44100"));
         carrierFreq = Float.parseFloat(preferences.getString(
@@ -173,12 +163,24 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
                 getString(R.string.lag_stdev_limit_key), "10"));
         symbolNumLimit = Integer.parseInt(preferences.getString(
                 getString(R.string.symbol_num_limit_key), "100"));
+        squelchLevel = Float.parseFloat(preferences.getString(
+                getString(R.string.squelch_level_key), "-70"));
+        squelchHysteresis = Float.parseFloat(preferences.getString(
+                getString(R.string.squelch_hysteresis_key), "6"));
+        headerTermination = preferences.getBoolean(
+                getString(R.string.header_termination_enabled_key), false);
         spaceFactor = Float.parseFloat(preferences.getString(
                 getString(R.string.space_factor_key), "1"));
+        senderIdleTimeout = Float.parseFloat(preferences.getString(
+                getString(R.string.sender_idle_timeout_key), "5"));
         updateUIParameter();
         updateBufferSize();
         updateReceiverParameter();
         updateSenderParameter();
+        senderPipeline = new SenderPipeline(new SenderCallbacks(), SAMPLING_RATE_IN_HZ,
+                senderBufferSize);
+        senderPipeline.setIdleTimeout(Math.round(senderIdleTimeout * 1000));
+        senderPipeline.start();
         setReceiverEnabled(preferences.getBoolean(getString(R.string.receiver_enabled_key), true));
     }
 
@@ -186,6 +188,7 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
     protected void onDestroy() {
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
         preferences.unregisterOnSharedPreferenceChangeListener(this);
+        senderPipeline.stop();
         super.onDestroy();
     }
 
@@ -346,6 +349,25 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
                 editor.apply();
             }
             updateReceiverParameter();
+        } else if (key.equals(getString(R.string.decimation_factor_key))) {
+            boolean commitBack = false;
+            try {
+                int newDecimationFactor = Integer.parseInt(preferences.getString(key, "1"));
+                if (newDecimationFactor < 1) {
+                    decimationFactor = 1;
+                    commitBack = true;
+                } else {
+                    decimationFactor = newDecimationFactor;
+                }
+            } catch (NumberFormatException e) {
+                commitBack = true;
+            }
+            if (commitBack) {
+                SharedPreferences.Editor editor = preferences.edit();
+                editor.putString(key, String.valueOf(decimationFactor));
+                editor.apply();
+            }
+            updateReceiverParameter();
         } else if (key.equals(getString(R.string.sample_freq_key))) {
             boolean commitBack = false;
             try {
@@ -421,8 +443,10 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
             boolean commitBack = false;
             try {
                 int newEndPreambleNum = Integer.parseInt(preferences.getString(key, "6"));
-                if (newEndPreambleNum < 1) {
-                    endPreambleNum = 1;
+                // Packets ending after their header need no end preamble
+                int minEndPreambleNum = headerTermination ? 0 : 1;
+                if (newEndPreambleNum < minEndPreambleNum) {
+                    endPreambleNum = minEndPreambleNum;
                     commitBack = true;
                 } else {
                     endPreambleNum = newEndPreambleNum;
@@ -475,6 +499,42 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
                 editor.apply();
             }
             updateReceiverParameter();
+        } else if (key.equals(getString(R.string.squelch_level_key))) {
+            boolean commitBack = false;
+            try {
+                squelchLevel = Float.parseFloat(preferences.getString(key, "-70"));
+            } catch (NumberFormatException e) {
+                commitBack = true;
+            }
+            if (commitBack) {
+                SharedPreferences.Editor editor = preferences.edit();
+                editor.putString(key, String.valueOf(squelchLevel));
+                editor.apply();
+            }
+            updateReceiverParameter();
+        } else if (key.equals(getString(R.string.squelch_hysteresis_key))) {
+            boolean commitBack = false;
+            try {
+                squelchHysteresis = Float.parseFloat(preferences.getString(key, "6"));
+            } catch (NumberFormatException e) {
+                commitBack = true;
+            }
+            if (commitBack) {
+                SharedPreferences.Editor editor = preferences.edit();
+                editor.putString(key, String.valueOf(squelchHysteresis));
+                editor.apply();
+            }
+            updateReceiverParameter();
+        } else if (key.equals(getString(R.string.header_termination_enabled_key))) {
+            headerTermination = preferences.getBoolean(key, false);
+            if (!headerTermination && endPreambleNum < 1) {
+                endPreambleNum = 1;
+                SharedPreferences.Editor editor = preferences.edit();
+                editor.putString(getString(R.string.end_preamble_num_key),
+                        String.valueOf(endPreambleNum));
+                editor.apply();
+            }
+            updateReceiverParameter();
         } else if (key.equals(getString(R.string.space_factor_key))) {
             boolean commitBack = false;
             try {
@@ -488,22 +548,88 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
                 editor.apply();
             }
             updateSenderParameter();
+        } else if (key.equals(getString(R.string.sender_idle_timeout_key))) {
+            boolean commitBack = false;
+            try {
+                float newSenderIdleTimeout = Float.parseFloat(preferences.getString(key, "5"));
+                if (newSenderIdleTimeout < 0) {
+                    senderIdleTimeout = 0;
+                    commitBack = true;
+                } else {
+                    senderIdleTimeout = newSenderIdleTimeout;
+                }
+            } catch (NumberFormatException e) {
+                commitBack = true;
+            }
+            if (commitBack) {
+                SharedPreferences.Editor editor = preferences.edit();
+                editor.putString(key, String.valueOf(senderIdleTimeout));
+                editor.apply();
+            }
+            senderPipeline.setIdleTimeout(Math.round(senderIdleTimeout * 1000));
         }
     }
 
+    // The receiver stages keep the config they were started with, so a running receiver is
+    // restarted on the new one
+    protected void restartReceiver() {
+        if (!receiverEnabled)
+            return;
+        setReceiverEnabled(false);
+        setReceiverEnabled(true);
+    }
+
     protected void setReceiverEnabled(boolean enabled) {
         if (receiverEnabled == enabled)
             return;
         receiverEnabled = enabled;
         if (enabled) {
-            receiver = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, SAMPLING_RATE_IN_HZ,
-                    CHANNEL_IN_CONFIG, AUDIO_IN_FORMAT, receiverBufferSize);
+            receiver = null;
+            boolean receiverFloat = false;
+            // Float samples need no conversion, but recording them is only supported from API 23
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                try {
+                    receiver = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
+                            SAMPLING_RATE_IN_HZ, CHANNEL_IN_CONFIG, AUDIO_IN_FLOAT_FORMAT,
+                            receiverBufferSize * FLOAT_BYTES);
+                    if (receiver.getState() == AudioRecord.STATE_INITIALIZED) {
+                        receiverFloat = true;
+                    } else {
+                        receiver.release();
+                        receiver = null;
+                    }
+                } catch (IllegalArgumentException e) {
+                    receiver = null;
+                }
+            }
+            if (receiver == null)
+                receiver = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, SAMPLING_RATE_IN_HZ,
+                        CHANNEL_IN_CONFIG, AUDIO_IN_FORMAT, receiverBufferSize);
+            log(LogLevel.INFO, receiverFloat ? "I: float capture" : "I: 16-bit capture");
+            // Each run has its own capture buffer, nothing of a stopped run is reused
+            FloatRingBuffer captureBuffer =
+                    new FloatRingBuffer(CAPTURE_BUFFER_SECONDS * SAMPLING_RATE_IN_HZ);
             receiver.startRecording();
-            receiverOn.set(true);
-            Thread receiverThread = new Thread(new ReceiverRunnable(), "Receiver Thread");
-            receiverThread.start();
+            captureRunnable = new CaptureRunnable(receiver, captureBuffer, receiverFloat);
+            captureThread = new Thread(captureRunnable, "Capture Thread");
+            captureThread.setPriority(Thread.MAX_PRIORITY);
+            captureThread.start();
+            receiverPipeline = new ReceiverPipeline(config, new ReceiverCallbacks(),
+                    captureBuffer, receiverBufferSize);
+            receiverPipeline.start();
         } else {
-            receiverOn.set(false);
+            // The recorder is only stopped once the capture thread no longer reads it
+            captureRunnable.stop();
+            captureThread.interrupt();
+            try {
+                captureThread.join(CAPTURE_STOP_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            captureRunnable = null;
+            captureThread = null;
+            receiverPipeline.stop();
+            receiverPipeline = null;
             receiver.stop();
             receiver.release();
             receiver = null;
@@ -512,7 +638,8 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
 
     protected void sendText(String text) {
         log(LogLevel.ERROR, String.format("Send packet: %s", text));
-        int[] result = SignalProcessing.encodeText(text, bits, dataSubcarrierNum);
+        int[] result = SignalProcessing.encodeText(text, config.bits,
+                config.dataSubcarrierNum);
         StringBuilder str = new StringBuilder();
         for (int i: result) {
             str.append(i);
@@ -522,161 +649,14 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
         sendData(result);
     }
 
+    // The sound is synthesized by the sender thread while it plays, so it starts after one
+    // chunk and is never held as a whole
     protected void sendData(int[] dataInput) {
-        int dataNum = dataInput.length;
-        int symbolNum = dataNum / dataSubcarrierNum;
-        if (dataNum != symbolNum * dataSubcarrierNum)
-            throw new AssertionError("Wrong data input size");
-        int pilotNum = symbolNum * pilotSubcarrierNum;
-        int[] pilotInput = generatePilot(pilotNum);
-        Box<float[]> realPSKModulatedData = new Box<>();
-        Box<float[]> imagPSKModulatedData = new Box<>();
-        pskMethod.modulate(dataInput, realPSKModulatedData, imagPSKModulatedData);
-        Box<float[]> realPSKModulatedPilot = new Box<>();
-        Box<float[]> imagPSKModulatedPilot = new Box<>();
-        pskMethod.modulate(pilotInput, realPSKModulatedPilot, imagPSKModulatedPilot);
-        float[][] realDataMatrix = new float[symbolNum][];
-        float[][] imagDataMatrix = new float[symbolNum][];
-        for (int i = 0; i < symbolNum; ++i) {
-            realDataMatrix[i] = new float[dataSubcarrierNum];
-            imagDataMatrix[i] = new float[dataSubcarrierNum];
-            System.arraycopy(realPSKModulatedData.value, i * dataSubcarrierNum,
-                    realDataMatrix[i], 0, dataSubcarrierNum);
-            System.arraycopy(imagPSKModulatedData.value, i * dataSubcarrierNum,
-                    imagDataMatrix[i], 0, dataSubcarrierNum);
-        }
-        float[][] realPilotMatrix = new float[symbolNum][];
-        float[][] imagPilotMatrix = new float[symbolNum][];
-        for (int i = 0; i < symbolNum; ++i) {
-            realPilotMatrix[i] = new float[pilotSubcarrierNum];
-            imagPilotMatrix[i] = new float[pilotSubcarrierNum];
-            System.arraycopy(realPSKModulatedPilot.value, i * pilotSubcarrierNum,
-                    realPilotMatrix[i], 0, pilotSubcarrierNum);
-            System.arraycopy(imagPSKModulatedPilot.value, i * pilotSubcarrierNum,
-                    imagPilotMatrix[i], 0, pilotSubcarrierNum);
-        }
-        float[][] realFullMatrix = new float[symbolNum][];
-        float[][] imagFullMatrix = new float[symbolNum][];
-        for (int i = 0; i < symbolNum; ++i) {
-            realFullMatrix[i] = new float[symbolLen];
-            imagFullMatrix[i] = new float[symbolLen];
-        }
-        for (int i = 0; i < dataSubcarrierNum; ++i) {
-            int subcarrierIndex = dataSubcarrierIndices[i];
-            for (int j = 0; j < symbolNum; ++j) {
-                realFullMatrix[j][subcarrierIndex] = realDataMatrix[j][i];
-                imagFullMatrix[j][subcarrierIndex] = imagDataMatrix[j][i];
-            }
-        }
-        for (int i = 0; i < pilotSubcarrierNum; ++i) {
-            int subcarrierIndex = pilotSubcarrierIndices[i];
-            for (int j = 0; j < symbolNum; ++j) {
-                realFullMatrix[j][subcarrierIndex] = realPilotMatrix[j][i];
-                imagFullMatrix[j][subcarrierIndex] = imagPilotMatrix[j][i];
-            }
-        }
-        float[][] realIFFTData = new float[symbolNum][];
-        float[][] imagIFFTData = new float[symbolNum][];
-        for (int i = 0; i < symbolNum; ++i) {
-            FFT.ifft(realFullMatrix[i], imagFullMatrix[i]);
-            realIFFTData[i] = new float[realSymbolLen];
-            System.arraycopy(realFullMatrix[i], cyclicPrefixStart,
-                    realIFFTData[i], 0, cyclicPrefixLen);
-            System.arraycopy(realFullMatrix[i], 0, realIFFTData[i], cyclicPrefixLen, symbolLen);
-            imagIFFTData[i] = new float[realSymbolLen];
-            System.arraycopy(imagFullMatrix[i], cyclicPrefixStart,
-                    imagIFFTData[i], 0, cyclicPrefixLen);
-            System.arraycopy(imagFullMatrix[i], 0, imagIFFTData[i], cyclicPrefixLen, symbolLen);
-        }
-        float[] realOFDMSignal = new float[realSymbolLen * symbolNum];
-        float[] imagOFDMSignal = new float[realSymbolLen * symbolNum];
-        for (int i = 0; i < symbolNum; ++i) {
-            System.arraycopy(realIFFTData[i], 0, realOFDMSignal, i * realSymbolLen, realSymbolLen);
-            System.arraycopy(imagIFFTData[i], 0, imagOFDMSignal, i * realSymbolLen, realSymbolLen);
-        }
-        float[] tx = new float[realSymbolLen * symbolNum];
-        for (int i = 0; i < realOFDMSignal.length; ++i) {
-            float t = i / sampleFreq;
-            float x = (float) (2 * Math.PI * carrierFreq * t);
-            float realFactor = (float) Math.cos(x);
-            float imagFactor = (float) Math.sin(x);
-            tx[i] = realOFDMSignal[i] * realFactor - imagOFDMSignal[i] * imagFactor;
-        }
-        float[] realTx = new float[realSymbolLen * (startPreambleNum + symbolNum + endPreambleNum)];
-        for (int i = 9; i < tx.length; ++i)
-            realTx[startPreambleNum * realSymbolLen + i] = SOUND_AMPLIFIER * tx[i];
-        for (int i = 0; i < startPreambleNum; ++i)
-            System.arraycopy(startPreambleSymbol, 0, realTx, i * realSymbolLen, realSymbolLen);
-        for (int i = 0; i < endPreambleNum; ++i)
-            System.arraycopy(endPreambleSymbol, 0, realTx,
-                    (startPreambleNum + symbolNum + i) * realSymbolLen, realSymbolLen);
-        int space = Math.round(realSymbolLen * spaceFactor);
-        float[] sound = new float[2 * space + realTx.length];
-        System.arraycopy(realTx, 0, sound, space, realTx.length);
-        sendSound(sound);
-    }
-
-    protected void sendSound(float[] sound) {
-        synchronized (sendBufferMutex) {
-            float[] newSendBuffer = new float[sendBuffer.length + sound.length];
-            System.arraycopy(sendBuffer, 0, newSendBuffer, 0, sendBuffer.length);
-            System.arraycopy(sound, 0, newSendBuffer, sendBuffer.length, sound.length);
-            sendBuffer = newSendBuffer;
-        }
-        if (!senderOn.get()) {
-            Thread senderThread = new Thread(new SenderRunnable(), "Sender Thread");
-            senderThread.start();
-        }
-    }
-
-    private class SenderRunnable implements Runnable {
-
-        @Override
-        public void run() {
-            AudioTrack sender = new AudioTrack(AudioManager.STREAM_MUSIC, SAMPLING_RATE_IN_HZ,
-                    CHANNEL_OUT_CONFIG, AUDIO_OUT_FORMAT, senderBufferSize, AudioTrack.MODE_STREAM);
-            sender.play();
-            while (true) {
-                short[] data;
-                synchronized (sendBufferMutex) {
-                    if (sendBuffer.length == 0) {
-                        senderOn.set(false);
-                        break;
-                    } else {
-                        data = new short[sendBuffer.length];
-                        for (int i = 0; i < sendBuffer.length; ++i)
-                            data[i] = (short) Math.round(sendBuffer[i] * 0.8 * SHORT_MAX);
-                        sendBuffer = new float[0];
-                    }
-                }
-                int write = 0;
-                while (write != data.length) {
-                    int result = sender.write(data, write, data.length);
-                    if (result < 0)
-                        throw new RuntimeException("Error when writing audio: " +
-                                getBufferWriteFailureReason(result) + ")");
-                    write += result;
-                }
-
-            }
-            sender.stop();
-            sender.release();
-        }
-
-        private String getBufferWriteFailureReason(int errorCode) {
-            switch (errorCode) {
-                case AudioRecord.ERROR_INVALID_OPERATION:
-                    return "ERROR_INVALID_OPERATION";
-                case AudioRecord.ERROR_BAD_VALUE:
-                    return "ERROR_BAD_VALUE";
-                case AudioRecord.ERROR_DEAD_OBJECT:
-                    return "ERROR_DEAD_OBJECT";
-                case AudioRecord.ERROR:
-                    return "ERROR";
-                default:
-                    return "Unknown (" + errorCode + ")";
-            }
-        }
+        OFDMModulator modulator = new OFDMModulator(config);
+        modulator.begin(dataInput);
+        if (!senderPipeline.send(modulator))
+            log(LogLevel.WARN, String.format("W: send queue full (%d packets), packet dropped",
+                    senderPipeline.queueDepth()));
     }
 
     protected void updateUIParameter() {
@@ -690,42 +670,36 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
     }
 
     protected void updateReceiverParameter() {
-        bits = (int) Math.round(Math.log(pskModulate) / Math.log(2));
-        pskMethod = SignalProcessing.getPSK(pskModulate);
-        dataSubcarrierNum = subcarrierNum - pilotSubcarrierNum;
-        pilotSubcarrierIndices = new int[pilotSubcarrierNum];
-        for (int i = 0; i < pilotSubcarrierNum; ++i)
-            pilotSubcarrierIndices[i] = Math.round((i + 1) *
-                    (float) subcarrierNum / (pilotSubcarrierNum + 1)) - 1;
-        dataSubcarrierIndices = new int[dataSubcarrierNum];
-        int dataIndex = 0, pilotIndex = 0;
-        for (int j = 0; j < subcarrierNum; ++j) {
-            if (pilotIndex< pilotSubcarrierNum &&
-                    j == pilotSubcarrierIndices[pilotIndex]) {
-                ++pilotIndex;
-            } else {
-                dataSubcarrierIndices[dataIndex++] = j;
-            }
-        }
-        cyclicPrefixLen = (int) Math.round(Math.ceil(cyclicPrefixFactor * symbolLen));
-        cyclicPrefixStart = symbolLen - cyclicPrefixLen;
-        cyclicPrefixEnd = symbolLen;
-        realSymbolLen = symbolLen + cyclicPrefixLen;
-        float[] preambleSymbolTime = new float[realSymbolLen];
-        float sampleTime = 1 / sampleFreq;
-        for (int i = 0; i < realSymbolLen; ++i)
-            preambleSymbolTime[i] = i * sampleTime;
-        startPreambleSymbol = SignalProcessing.chirp(preambleLowFreq, preambleHighFreq, preambleSymbolTime);
-        endPreambleSymbol = SignalProcessing.chirp(preambleHighFreq, preambleLowFreq, preambleSymbolTime);
-        signalBufferLenLimit = realSymbolLen * symbolNumLimit + endPreambleNum * symbolLen;
-        signalBuffer = new ArrayList<>();
-        started = false;
-        starts = new ArrayDeque<>();
-        ends = new ArrayDeque<>();
+        config = buildConfig();
+        restartReceiver();
     }
 
     protected void updateSenderParameter() {
-        // Do nothing
+        config = buildConfig();
+    }
+
+    private ModemConfig buildConfig() {
+        ModemConfig config = new ModemConfig();
+        config.pskModulate = pskModulate;
+        config.subcarrierNum = subcarrierNum;
+        config.pilotSubcarrierNum = pilotSubcarrierNum;
+        config.symbolLen = symbolLen;
+        config.cyclicPrefixFactor = cyclicPrefixFactor;
+        config.decimationFactor = decimationFactor;
+        config.sampleFreq = sampleFreq;
+        config.carrierFreq = carrierFreq;
+        config.preambleLowFreq = preambleLowFreq;
+        config.preambleHighFreq = preambleHighFreq;
+        config.startPreambleNum = startPreambleNum;
+        config.endPreambleNum = endPreambleNum;
+        config.startEndThreshold = startEndThreshold;
+        config.lagStdevLimit = lagStdevLimit;
+        config.symbolNumLimit = symbolNumLimit;
+        config.squelchLevel = squelchLevel;
+        config.squelchHysteresis = squelchHysteresis;
+        config.headerTermination = headerTermination;
+        config.spaceFactor = spaceFactor;
+        return config.update();
     }
 
     protected void updateBufferSize() {
@@ -735,294 +709,51 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
                 CHANNEL_OUT_CONFIG, AUDIO_IN_FORMAT);
     }
 
-    private class ReceiverRunnable implements Runnable {
+    // Only moves samples from the recorder into the capture buffer, so that a slow window
+    // in processing never stalls the recorder
+    private class CaptureRunnable implements Runnable {
+        private final AudioRecord receiver;
+        private final FloatRingBuffer captureBuffer;
+        private final boolean floatCapture;
+        private final AtomicBoolean running = new AtomicBoolean(true);
+
+        CaptureRunnable(AudioRecord receiver, FloatRingBuffer captureBuffer,
+                        boolean floatCapture) {
+            this.receiver = receiver;
+            this.captureBuffer = captureBuffer;
+            this.floatCapture = floatCapture;
+        }
 
-        @SuppressWarnings("LambdaCanBeReplacedWithAnonymous")
-        private void logOnUiThread(LogLevel level, String content) {
-            runOnUiThread(() -> log(level, content));
+        // The thread ends after the read in progress
+        void stop() {
+            running.set(false);
         }
 
-        @SuppressLint("DefaultLocale")
         @Override
         public void run() {
-            short[] prevBuffer = new short[0], curBuffer = new short[receiverBufferSize];
-            while (receiverOn.get()) {
-                int read = 0;
-                while (receiverOn.get() && read != receiverBufferSize) {
-                    int result = receiver.read(curBuffer, read, receiverBufferSize);
-                    if (result < 0)
-                        throw new RuntimeException("Error when reading audio: " +
-                                getBufferReadFailureReason(result) + ")");
-                    read += result;
-                }
-                if (!receiverOn.get())
-                    break;
-                short[] totalBuffer = new short[prevBuffer.length + curBuffer.length];
-                System.arraycopy(prevBuffer, 0, totalBuffer, 0, prevBuffer.length);
-                System.arraycopy(curBuffer, 0, totalBuffer, prevBuffer.length, curBuffer.length);
-                int bufferOffset = 0;
-                while (bufferOffset + realSymbolLen < totalBuffer.length) {
-                    float[] window = new float[realSymbolLen];
-                    for (int i = 0; i < realSymbolLen; ++i)
-                        window[i] = totalBuffer[bufferOffset + i] / SHORT_MAX;
-                    processWindow(window);
-                    bufferOffset += realSymbolLen;
-                }
-                prevBuffer = Arrays.copyOfRange(totalBuffer, bufferOffset, totalBuffer.length);
-            }
-        }
-
-        @SuppressWarnings({"LambdaCanBeReplacedWithAnonymous"})
-        @SuppressLint("DefaultLocale")
-        private void processWindow(float[] window) {
-            if (previousWindow == null) {
-                previousWindow = window;
-                return;
-            }
-            boolean skipBuffer = false;
-            float[] sigReceiveWindow = new float[realSymbolLen * 2];
-            System.arraycopy(previousWindow, 0, sigReceiveWindow, 0, realSymbolLen);
-            System.arraycopy(window, 0, sigReceiveWindow, realSymbolLen, realSymbolLen);
-            if (!started) {
-                Box<float[]> startCor = new Box<>();
-                Box<int[]> startLags = new Box<>();
-                SignalProcessing.xcorr(sigReceiveWindow, startPreambleSymbol, startCor, startLags);
-                float[] clippedStartCor = new float[realSymbolLen];
-                int[] clippedStartLags = new int[realSymbolLen];
-                System.arraycopy(startCor.value, startCor.value.length / 2,
-                        clippedStartCor, 0, realSymbolLen);
-                System.arraycopy(startLags.value, startLags.value.length / 2,
-                        clippedStartLags, 0, realSymbolLen);
-                Box<Float> startCorMax = new Box<>();
-                Box<Integer> index = new Box<>();
-                SignalProcessing.max(clippedStartCor, startCorMax, index);
-                float value = startCorMax.value / SignalProcessing.meanAbs(clippedStartCor);
-                int startLag = clippedStartLags[index.value];
-                if (value > startEndThreshold) {
-                    starts.add(startLag);
-                    if (starts.size() > startPreambleNum) {
-                        starts.pop();
-                    }
-                    logOnUiThread(LogLevel.DEBUG, String.format("D: startCorMax: %f index: %d", value, startLag));
-                    if (starts.size() == startPreambleNum) {
-                        float mean = SignalProcessing.mean(starts);
-                        float dev = SignalProcessing.stdev(starts, mean);
-                        logOnUiThread(LogLevel.DEBUG, String.format("D: startCandidate mean: %f dev: %f", mean, dev));
-                        if (dev <= lagStdevLimit) {
-                            int roundMean = Math.round(mean);
-                            logOnUiThread(LogLevel.INFO, String.format("I: started: %d", roundMean));
-                            signalBuffer = new ArrayList<>();
-                            for (int i = roundMean; i < realSymbolLen; ++i)
-                                signalBuffer.add(sigReceiveWindow[i]);
-                            started = true;
-                            skipBuffer = true;
-                            logOnUiThread(LogLevel.DEBUG, String.format("D: start write: %d", realSymbolLen - roundMean));
-                        }
-                    }
-                    if (drawStartXcorr.get()) {
-                        plotView.setStartXcorrData(clippedStartCor);
-                        plotView.postInvalidate();
-                    }
-                } else {
-                    starts = new ArrayDeque<>();
+            int sampleBytes = floatCapture ? FLOAT_BYTES : SHORT_BYTES;
+            // The recorder fills the direct buffer in place, the views read it without copies
+            ByteBuffer curBuffer = ByteBuffer.allocateDirect(receiverBufferSize * sampleBytes)
+                    .order(ByteOrder.nativeOrder());
+            FloatBuffer floatBuffer = curBuffer.asFloatBuffer();
+            ShortBuffer shortBuffer = curBuffer.asShortBuffer();
+            while (running.get()) {
+                int result = receiver.read(curBuffer, curBuffer.capacity());
+                if (result < 0) {
+                    if (!running.get())
+                        break;
+                    throw new RuntimeException("Error when reading audio: " +
+                            getBufferReadFailureReason(result) + ")");
                 }
-            } else {
-                Box<float[]> endCor = new Box<>();
-                Box<int[]> endLags = new Box<>();
-                SignalProcessing.xcorr(sigReceiveWindow, endPreambleSymbol, endCor, endLags);
-                float[] clippedEndCor = new float[realSymbolLen];
-                int[] clippedEndLags = new int[realSymbolLen];
-                System.arraycopy(endCor.value, endCor.value.length / 2,
-                        clippedEndCor, 0, realSymbolLen);
-                System.arraycopy(endLags.value, endLags.value.length / 2,
-                        clippedEndLags, 0, realSymbolLen);
-                Box<Float> endCorMax = new Box<>();
-                Box<Integer> index = new Box<>();
-                SignalProcessing.max(clippedEndCor, endCorMax, index);
-                float value = endCorMax.value / SignalProcessing.meanAbs(clippedEndCor);
-                int endLag = clippedEndLags[index.value];
-                if (value > startEndThreshold) {
-                    ends.add(endLag);
-                    if (ends.size() > endPreambleNum) {
-                        ends.pop();
-                    }
-                    logOnUiThread(LogLevel.DEBUG, String.format("D: endCorMax: %f index: %d", value, endLag));
-                    if (ends.size() == endPreambleNum) {
-                        float mean = SignalProcessing.mean(ends);
-                        float dev = SignalProcessing.stdev(ends, mean);
-                        logOnUiThread(LogLevel.DEBUG, String.format("D: endCandidate mean: %f dev: %f", mean, dev));
-                        if (dev <= lagStdevLimit) {
-                            int roundMean = Math.round(mean);
-                            logOnUiThread(LogLevel.INFO, String.format("I: ended: %d", roundMean));
-                            for (int i = 0; i < roundMean; ++i)
-                                signalBuffer.add(sigReceiveWindow[i]);
-                            logOnUiThread(LogLevel.DEBUG, String.format("D: start write: %d", roundMean));
-                            int length = signalBuffer.size() - endPreambleNum * realSymbolLen;
-                            if (length > 0) {
-                                float[] signal = new float[length];
-                                for (int i = 0; i < length; ++i) {
-                                    signal[i] = signalBuffer.get(i + realSymbolLen);
-                                }
-                                processSignalBuffer(signal);
-                            }
-                            signalBuffer = new ArrayList<>();
-                            started = false;
-                        }
-                    }
-                    if (drawEndXcorr.get()) {
-                        plotView.setEndXcorrData(clippedEndCor);
-                        plotView.postInvalidate();
-                    }
+                int samples = result / sampleBytes;
+                if (floatCapture) {
+                    floatBuffer.clear();
+                    captureBuffer.write(floatBuffer, samples);
                 } else {
-                    ends = new ArrayDeque<>();
+                    shortBuffer.clear();
+                    captureBuffer.write(shortBuffer, samples, 1 / SHORT_MAX);
                 }
             }
-            if (started && !skipBuffer) {
-                for (int i = 0; i < realSymbolLen; ++i)
-                    signalBuffer.add(sigReceiveWindow[i]);
-                if (signalBufferLenLimit != 0 && signalBuffer.size() > signalBufferLenLimit) {
-                    signalBuffer = new ArrayList<>();
-                    started = false;
-                    logOnUiThread(LogLevel.WARN, "W: packet too long");
-                }
-                logOnUiThread(LogLevel.DEBUG, String.format("continue write: %d", realSymbolLen));
-            }
-            previousWindow = window;
-            if (drawTime.get()) {
-                plotView.setTimeData(window);
-                plotView.postInvalidate();
-            }
-        }
-
-        @SuppressLint("DefaultLocale")
-        private void processSignalBuffer(float[] signalBuffer) {
-            int realSignalLen = signalBuffer.length;
-            int symbolNum = Math.round((float) realSignalLen / realSymbolLen);
-            int expectedSignalLen = symbolNum * realSymbolLen;
-            logOnUiThread(LogLevel.INFO, String.format("I: real len: %d expected len: %d",
-                        realSignalLen, expectedSignalLen));
-            if (realSignalLen == expectedSignalLen) {
-                processReceivedSignal(signalBuffer, symbolNum);
-                return;
-            }
-            float[] receivedSignal = new float[expectedSignalLen];
-            if (realSignalLen < expectedSignalLen) {
-                int paddingLeft = (int) Math.round(Math.floor(
-                        (float) (expectedSignalLen - realSignalLen) / 2));
-                System.arraycopy(signalBuffer, 0, receivedSignal, paddingLeft, realSignalLen);
-            } else {
-                int clipLeft = (int) Math.round(Math.floor(
-                        (float) (realSignalLen - expectedSignalLen) / 2));
-                System.arraycopy(signalBuffer, clipLeft, receivedSignal, 0, expectedSignalLen);
-            }
-            processReceivedSignal(receivedSignal, symbolNum);
-        }
-
-        @SuppressLint("DefaultLocale")
-        private void processReceivedSignal(float[] receivedSignal, int symbolNum) {
-            // Multiply carrier wave to extract signal
-            float[] realReceivedSignal = new float[receivedSignal.length];
-            float[] imagReceivedSignal = new float[receivedSignal.length];
-            for (int i = 0; i < receivedSignal.length; ++i) {
-                float t = i / sampleFreq;
-                float x = (float) (2 * Math.PI * carrierFreq * t);
-                realReceivedSignal[i] = receivedSignal[i] * (float) Math.cos(x);
-                imagReceivedSignal[i] = receivedSignal[i] * (float) -Math.sin(x);
-            }
-            // Reshape to matrix
-            float[][] realReceivedFullMatrix = new float[symbolNum][];
-            float[][] imagReceivedFullMatrix = new float[symbolNum][];
-            for (int i = 0; i < symbolNum; ++i) {
-                realReceivedFullMatrix[i] = new float[symbolLen];
-                imagReceivedFullMatrix[i] = new float[symbolLen];
-                System.arraycopy(realReceivedSignal, i * realSymbolLen + cyclicPrefixLen,
-                        realReceivedFullMatrix[i], 0, symbolLen);
-                System.arraycopy(imagReceivedSignal, i * realSymbolLen + cyclicPrefixLen,
-                        imagReceivedFullMatrix[i], 0, symbolLen);
-            }
-            // FFT
-            float[][] realFFTData = new float[symbolNum][];
-            float[][] imagFFTData = new float[symbolNum][];
-            for (int i = 0; i < symbolNum; ++i) {
-                FFT.fft(realReceivedFullMatrix[i], imagReceivedFullMatrix[i]);
-                realFFTData[i] = new float[subcarrierNum];
-                imagFFTData[i] = new float[subcarrierNum];
-                System.arraycopy(realReceivedFullMatrix[i], 0, realFFTData[i], 0, subcarrierNum);
-                System.arraycopy(imagReceivedFullMatrix[i], 0, imagFFTData[i], 0, subcarrierNum);
-            }
-            int dataNum = dataSubcarrierNum * symbolNum;
-            int pilotNum = pilotSubcarrierNum * symbolNum;
-            // Reshape to serial and split data and pilot
-            float[] realReceivedSerialData = new float[dataNum];
-            float[] imagReceivedSerialData = new float[dataNum];
-            float[] realReceivedSerialPilot = new float[pilotNum];
-            float[] imagReceivedSerialPilot = new float[pilotNum];
-            for (int i = 0; i < symbolNum; ++i) {
-                for (int j = 0; j < dataSubcarrierNum; ++j) {
-                    realReceivedSerialData[i * dataSubcarrierNum + j] =
-                            realFFTData[i][dataSubcarrierIndices[j]];
-                    imagReceivedSerialData[i * dataSubcarrierNum + j] =
-                            imagFFTData[i][dataSubcarrierIndices[j]];
-                }
-                for (int j = 0; j < pilotSubcarrierNum; ++j) {
-                    realReceivedSerialPilot[i * pilotSubcarrierNum + j] =
-                            realFFTData[i][pilotSubcarrierIndices[j]];
-                    imagReceivedSerialPilot[i * pilotSubcarrierNum + j] =
-                            imagFFTData[i][pilotSubcarrierIndices[j]];
-                }
-            }
-            // Calculate signal shift
-            Box<float[]> realPSKModulatedPilot = new Box<>();
-            Box<float[]> imagPSKModulatedPilot = new Box<>();
-            int[] pilotInput = generatePilot(pilotNum);
-            pskMethod.modulate(pilotInput, realPSKModulatedPilot, imagPSKModulatedPilot);
-            float[] realDelta = new float[pilotNum];
-            float[] imagDelta = new float[pilotNum];
-            // delta = PSKModulatedPilot / receivedSerialPilot
-            for (int i = 0; i < pilotNum; ++i) {
-                float factor = 1 / (realReceivedSerialPilot[i] * realReceivedSerialPilot[i] +
-                        imagReceivedSerialPilot[i] * imagReceivedSerialPilot[i]);
-                realDelta[i] = factor * (realPSKModulatedPilot.value[i] * realReceivedSerialPilot[i] +
-                        imagPSKModulatedPilot.value[i] * imagReceivedSerialPilot[i]);
-                imagDelta[i] = factor * (imagPSKModulatedPilot.value[i] * realReceivedSerialPilot[i] -
-                        realPSKModulatedPilot.value[i] * imagReceivedSerialPilot[i]);
-            }
-            float realMeanDelta = SignalProcessing.mean(realDelta);
-            float imagMeanDelta = SignalProcessing.mean(imagDelta);
-            logOnUiThread(LogLevel.INFO,
-                    String.format("I: abs: %f angle: %f",
-                            1 / Math.sqrt(realMeanDelta * realMeanDelta +
-                                    imagMeanDelta * imagMeanDelta),
-                            -Math.atan2(imagMeanDelta, realMeanDelta) / Math.PI * 180));
-            // Recover signal
-            float[] realReceivedSerialDataCorrected = new float[dataNum];
-            float[] imagReceivedSerialDataCorrected = new float[dataNum];
-            // receivedSerialDataCorrected = receivedSerialData * meanDelta
-            for (int i = 0; i < dataNum; ++i) {
-                realReceivedSerialDataCorrected[i] = realReceivedSerialData[i] * realMeanDelta -
-                        imagReceivedSerialData[i] * imagMeanDelta;
-                imagReceivedSerialDataCorrected[i] = realReceivedSerialData[i] * imagMeanDelta +
-                        imagReceivedSerialData[i] * realMeanDelta;
-            }
-            // Demodulate
-            int[] pskDemodulatedData = pskMethod.demodulate(
-                    realReceivedSerialDataCorrected, imagReceivedSerialDataCorrected);
-            processData(pskDemodulatedData);
-        }
-
-        private void processData(int[] data) {
-            StringBuilder str = new StringBuilder();
-            for (int i: data) {
-                str.append(i);
-                str.append(' ');
-            }
-            logOnUiThread(LogLevel.WARN, String.format("W: receiver data: %s", str.toString()));
-            String text = SignalProcessing.decodeText(data, bits, dataSubcarrierNum);
-            if (text == null) {
-                logOnUiThread(LogLevel.ERROR, "Corrupted packet");
-            } else {
-                logOnUiThread(LogLevel.ERROR, String.format("Receive packet: %s", text));
-            }
         }
 
         private String getBufferReadFailureReason(int errorCode) {
@@ -1041,9 +772,46 @@ public class MainActivity extends AppCompatActivity implements SharedPreferences
         }
     }
 
-    private static int[] generatePilot(int length) {
-        // Use zero
-        return new int[length];
+    // Receiver callbacks, forwarded to the UI thread
+    private class ReceiverCallbacks implements ReceiverListener {
+        @SuppressWarnings("LambdaCanBeReplacedWithAnonymous")
+        @Override
+        public void log(LogLevel level, String content) {
+            runOnUiThread(() -> MainActivity.this.log(level, content));
+        }
+
+        @Override
+        public void onWindow(float[] window) {
+            if (drawTime.get()) {
+                plotView.setTimeData(window.clone());
+                plotView.postInvalidate();
+            }
+        }
+
+        @Override
+        public void onStartCorrelation(float[] cor, int offset, int length) {
+            if (drawStartXcorr.get()) {
+                plotView.setStartXcorrData(Arrays.copyOfRange(cor, offset, offset + length));
+                plotView.postInvalidate();
+            }
+        }
+
+        @Override
+        public void onEndCorrelation(float[] cor, int offset, int length) {
+            if (drawEndXcorr.get()) {
+                plotView.setEndXcorrData(Arrays.copyOfRange(cor, offset, offset + length));
+                plotView.postInvalidate();
+            }
+        }
+    }
+
+    // Sender callbacks, forwarded to the UI thread
+    private class SenderCallbacks implements SenderListener {
+        @SuppressWarnings("LambdaCanBeReplacedWithAnonymous")
+        @Override
+        public void log(LogLevel level, String content) {
+            runOnUiThread(() -> MainActivity.this.log(level, content));
+        }
     }
 
     @SuppressWarnings("SameParameterValue")
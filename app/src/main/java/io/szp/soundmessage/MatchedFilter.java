@@ -0,0 +1,92 @@
+package io.szp.soundmessage;
+
+import java.util.Arrays;
+
+// Correlation against a constant template, cor[lag] = sum(signal[lag + i] * template[i])
+// for lag in [0, lagNum). The conjugated template spectrum is computed once, so filtering
+// a signal costs one forward FFT, one complex multiply and one inverse FFT. Filters with
+// the same FFT size can share the forward transform of the signal.
+public class MatchedFilter {
+    private final int signalLen, lagNum, fftLen;
+    private final RealFFTPlan plan;
+    private final float[] templateReal, templateImag;
+
+    private final ThreadLocal<float[][]> workspace = new ThreadLocal<float[][]>() {
+        @Override
+        protected float[][] initialValue() {
+            int spectrumLen = plan.spectrumSize();
+            return new float[][] { new float[fftLen], new float[spectrumLen],
+                    new float[spectrumLen] };
+        }
+    };
+
+    public MatchedFilter(float[] template, int signalLen, int lagNum) {
+        if (template.length == 0 || signalLen < 1 || lagNum < 1)
+            throw new IllegalArgumentException("Empty filter");
+        this.signalLen = signalLen;
+        this.lagNum = lagNum;
+        // Long enough that no lag below lagNum wraps around
+        int minLen = Math.max(signalLen, template.length + lagNum - 1);
+        int len = minLen + minLen % 2;
+        while (!FFTPlan.isSmooth(len))
+            len += 2;
+        fftLen = len;
+        plan = RealFFTPlan.get(fftLen);
+        int spectrumLen = plan.spectrumSize();
+        float[] padded = new float[fftLen];
+        System.arraycopy(template, 0, padded, 0, template.length);
+        templateReal = new float[spectrumLen];
+        templateImag = new float[spectrumLen];
+        plan.forward(padded, templateReal, templateImag);
+        for (int i = 0; i < spectrumLen; ++i)
+            templateImag[i] = -templateImag[i];
+    }
+
+    public int signalLength() {
+        return signalLen;
+    }
+
+    public int lagNum() {
+        return lagNum;
+    }
+
+    public int spectrumSize() {
+        return plan.spectrumSize();
+    }
+
+    // Whether spectrum() of this filter can be passed to other.correlate()
+    public boolean sharesSpectrum(MatchedFilter other) {
+        return fftLen == other.fftLen && signalLen == other.signalLen;
+    }
+
+    // Forward transform of signal[0, signalLen) zero-padded to the FFT size
+    public void spectrum(float[] signal, float[] real, float[] imag) {
+        if (signal.length < signalLen)
+            throw new IllegalArgumentException("Signal shorter than filter input");
+        float[] padded = workspace.get()[0];
+        System.arraycopy(signal, 0, padded, 0, signalLen);
+        Arrays.fill(padded, signalLen, fftLen, 0);
+        plan.forward(padded, real, imag);
+    }
+
+    // cor[0, lagNum) from a spectrum computed by spectrum()
+    public void correlate(float[] real, float[] imag, float[] cor) {
+        if (cor.length < lagNum)
+            throw new IllegalArgumentException("Output shorter than lag number");
+        float[][] work = workspace.get();
+        float[] output = work[0], productReal = work[1], productImag = work[2];
+        for (int i = 0; i < productReal.length; ++i) {
+            float r = real[i], m = imag[i];
+            productReal[i] = r * templateReal[i] - m * templateImag[i];
+            productImag[i] = m * templateReal[i] + r * templateImag[i];
+        }
+        plan.inverse(productReal, productImag, output);
+        System.arraycopy(output, 0, cor, 0, lagNum);
+    }
+
+    public void correlate(float[] signal, float[] cor) {
+        float[][] work = workspace.get();
+        spectrum(signal, work[1], work[2]);
+        correlate(work[1], work[2], cor);
+    }
+}
@@ -0,0 +1,103 @@
+package io.szp.soundmessage;
+
+// Snapshot of the modem parameters shared by the sender and the receiver stages. Set the
+// parameters, then call update() to derive the rest. A snapshot is not changed after it is
+// handed to other threads, a new one is made instead.
+public class ModemConfig {
+    // Common Parameter
+    public int pskModulate = 4;
+    public int subcarrierNum = 6;
+    public int pilotSubcarrierNum = 1;
+    public int symbolLen = 2048;
+    public float cyclicPrefixFactor = 0.1f;
+    // Rate reduction of the baseband signal, 1 to process at the sample rate
+    public int decimationFactor = 1;
+
+    public float sampleFreq = 44100;
+    public float carrierFreq = 4000;
+    public float preambleLowFreq = 4000;
+    public float preambleHighFreq = 8000;
+    public int startPreambleNum = 6;
+    public int endPreambleNum = 6;
+
+    // Receiver Parameter
+    public float startEndThreshold = 10;
+    public float lagStdevLimit = 10;
+    public int symbolNumLimit = 100;
+    public float squelchLevel = -70;
+    public float squelchHysteresis = 6;
+    // End a packet after the symbol number in its header instead of at the end preamble
+    public boolean headerTermination = false;
+    // Symbols the offline decoder lets queue up to extract their subcarriers in parallel, 0 for
+    // never
+    public int parallelSymbolNum = 8;
+
+    // Sender Parameter
+    public float spaceFactor = 1;
+
+    // Computed parameter
+    public int bits;
+    public SignalProcessing.PSK pskMethod;
+    public int dataSubcarrierNum;
+    public int[] pilotSubcarrierIndices;
+    public int[] dataSubcarrierIndices;
+    public int cyclicPrefixLen;
+    public int cyclicPrefixStart;
+    public int cyclicPrefixEnd;
+    public int realSymbolLen;
+    public int basebandSymbolLen;
+    public PolyphaseResampler resampler;
+    public int headerSymbolNum;
+    public PrunedDFT subcarrierDFT;
+    public NCO carrier;
+    public float[] startPreambleSymbol, endPreambleSymbol;
+
+    public ModemConfig update() {
+        bits = (int) Math.round(Math.log(pskModulate) / Math.log(2));
+        pskMethod = SignalProcessing.getPSK(pskModulate);
+        dataSubcarrierNum = subcarrierNum - pilotSubcarrierNum;
+        pilotSubcarrierIndices = new int[pilotSubcarrierNum];
+        for (int i = 0; i < pilotSubcarrierNum; ++i)
+            pilotSubcarrierIndices[i] = Math.round((i + 1) *
+                    (float) subcarrierNum / (pilotSubcarrierNum + 1)) - 1;
+        dataSubcarrierIndices = new int[dataSubcarrierNum];
+        int dataIndex = 0, pilotIndex = 0;
+        for (int j = 0; j < subcarrierNum; ++j) {
+            if (pilotIndex< pilotSubcarrierNum &&
+                    j == pilotSubcarrierIndices[pilotIndex]) {
+                ++pilotIndex;
+            } else {
+                dataSubcarrierIndices[dataIndex++] = j;
+            }
+        }
+        cyclicPrefixLen = (int) Math.round(Math.ceil(cyclicPrefixFactor * symbolLen));
+        cyclicPrefixStart = symbolLen - cyclicPrefixLen;
+        cyclicPrefixEnd = symbolLen;
+        realSymbolLen = symbolLen + cyclicPrefixLen;
+        int headerDataNum = (SignalProcessing.HEADER_BYTE_NUM * 8 + bits - 1) / bits;
+        headerSymbolNum = (headerDataNum + dataSubcarrierNum - 1) / dataSubcarrierNum;
+        // The factor has to divide the symbol and leave the subcarriers below the cutoff,
+        // otherwise the largest factor below it that does is used
+        int factor = Math.max(1, decimationFactor);
+        while (factor > 1 && (symbolLen % factor != 0 ||
+                symbolLen / factor <= 2 * subcarrierNum))
+            --factor;
+        basebandSymbolLen = symbolLen / factor;
+        // The filter runs within the cyclic prefix
+        resampler = factor == 1 ? null : new PolyphaseResampler(factor, cyclicPrefixLen + 1);
+        subcarrierDFT = new PrunedDFT(basebandSymbolLen, subcarrierNum);
+        carrier = new NCO(sampleFreq, carrierFreq);
+        float[] preambleSymbolTime = new float[realSymbolLen];
+        float sampleTime = 1 / sampleFreq;
+        for (int i = 0; i < realSymbolLen; ++i)
+            preambleSymbolTime[i] = i * sampleTime;
+        startPreambleSymbol = SignalProcessing.chirp(preambleLowFreq, preambleHighFreq, preambleSymbolTime);
+        endPreambleSymbol = SignalProcessing.chirp(preambleHighFreq, preambleLowFreq, preambleSymbolTime);
+        return this;
+    }
+
+    public static int[] generatePilot(int length) {
+        // Use zero
+        return new int[length];
+    }
+}
@@ -0,0 +1,70 @@
+package io.szp.soundmessage;
+
+// Numerically controlled oscillator at a fixed frequency. The phasor e^(j omega n) is advanced
+// by a complex multiply per sample and renormalized periodically, instead of evaluating cos and
+// sin for every sample. Only the phase at the start of each call is computed directly, so one
+// oscillator is shared by any number of threads.
+public class NCO {
+    // Samples between renormalizations of the phasor
+    private static final int RENORMALIZE_INTERVAL = 256;
+
+    private final double sampleFreq, freq;
+    private final double stepReal, stepImag;
+
+    public NCO(float sampleFreq, float freq) {
+        if (sampleFreq <= 0)
+            throw new IllegalArgumentException("Non-positive sample frequency");
+        this.sampleFreq = sampleFreq;
+        this.freq = freq;
+        double omega = 2 * Math.PI * freq / sampleFreq;
+        stepReal = Math.cos(omega);
+        stepImag = Math.sin(omega);
+    }
+
+    // Phase at sample n, reduced by whole periods first so that it stays exact for large n
+    private double phase(long n) {
+        return 2 * Math.PI * ((freq * n) % sampleFreq) / sampleFreq;
+    }
+
+    // outReal/outImag[outOffset + i] = input[offset + i] * e^(-j omega (position + i))
+    public void downconvert(long position, float[] input, int offset,
+                            float[] outReal, float[] outImag, int outOffset, int length) {
+        double x = phase(position);
+        double real = Math.cos(x), imag = Math.sin(x);
+        for (int start = 0; start < length; start += RENORMALIZE_INTERVAL) {
+            int end = Math.min(length, start + RENORMALIZE_INTERVAL);
+            for (int i = start; i < end; ++i) {
+                float value = input[offset + i];
+                outReal[outOffset + i] = (float) (value * real);
+                outImag[outOffset + i] = (float) (-value * imag);
+                double nextReal = real * stepReal - imag * stepImag;
+                imag = real * stepImag + imag * stepReal;
+                real = nextReal;
+            }
+            // First order correction of the magnitude back to 1
+            double gain = (3 - real * real - imag * imag) / 2;
+            real *= gain;
+            imag *= gain;
+        }
+    }
+
+    // output[outOffset + i] = Re{(real + j imag)[offset + i] * e^(j omega (position + i))}
+    public void upconvert(long position, float[] inReal, float[] inImag, int offset,
+                          float[] output, int outOffset, int length) {
+        double x = phase(position);
+        double real = Math.cos(x), imag = Math.sin(x);
+        for (int start = 0; start < length; start += RENORMALIZE_INTERVAL) {
+            int end = Math.min(length, start + RENORMALIZE_INTERVAL);
+            for (int i = start; i < end; ++i) {
+                output[outOffset + i] = (float) (inReal[offset + i] * real -
+                        inImag[offset + i] * imag);
+                double nextReal = real * stepReal - imag * stepImag;
+                imag = real * stepImag + imag * stepReal;
+                real = nextReal;
+            }
+            double gain = (3 - real * real - imag * imag) / 2;
+            real *= gain;
+            imag *= gain;
+        }
+    }
+}
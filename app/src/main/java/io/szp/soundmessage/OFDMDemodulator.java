@@ -0,0 +1,277 @@
+package io.szp.soundmessage;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Demodulation stage of the receiver: demodulates every data symbol as soon as it is
+// received. Each symbol has the carrier removed and the subcarriers extracted, is corrected
+// with the pilots received so far and gets its PSK decisions appended to the packet data.
+// Given a pool, the subcarriers of a long enough run of queued symbols are extracted in
+// parallel, only the pilot correction and the decisions stay in order.
+public class OFDMDemodulator {
+    private final ModemConfig config;
+    private final ReceiverListener listener;
+    // Null to extract the subcarriers serially
+    private final ForkJoinPool pool;
+    // Mixed symbol, and the symbol at the baseband rate, one per worker
+    private final ThreadLocal<float[][]> workspace = new ThreadLocal<float[][]>() {
+        @Override
+        protected float[][] initialValue() {
+            return new float[][] {
+                    new float[config.realSymbolLen], new float[config.realSymbolLen],
+                    new float[config.basebandSymbolLen], new float[config.basebandSymbolLen]
+            };
+        }
+    };
+    // Decimation reads the symbol earlier by the filter delay, which rotates each subcarrier
+    // by e^(-j 2 pi k delay / symbolLen), undone by these
+    private final float[] realShift, imagShift;
+    // Subcarriers of a symbol, or of each symbol of a run, and data of a symbol
+    private final float[] realSubcarrier, imagSubcarrier;
+    private float[][] realRunSubcarrier = new float[0][], imagRunSubcarrier = new float[0][];
+    private final float[] realData, imagData;
+    private final float[] realPSKModulatedPilot, imagPSKModulatedPilot;
+
+    // Packet being demodulated, -1 if none
+    private long packet = -1;
+    private long position;
+    private int symbolNum;
+    private int[] data = new int[0];
+    // Sums over the pilots received so far of PSKModulatedPilot * conj(receivedPilot) and
+    // of |receivedPilot|^2
+    private double realPilotProduct, imagPilotProduct, pilotEnergy;
+
+    public OFDMDemodulator(ModemConfig config, ReceiverListener listener) {
+        this(config, listener, null);
+    }
+
+    public OFDMDemodulator(ModemConfig config, ReceiverListener listener, ForkJoinPool pool) {
+        this.config = config;
+        this.listener = listener;
+        this.pool = pool;
+        realSubcarrier = new float[config.subcarrierNum];
+        imagSubcarrier = new float[config.subcarrierNum];
+        realData = new float[config.dataSubcarrierNum];
+        imagData = new float[config.dataSubcarrierNum];
+        realShift = new float[config.subcarrierNum];
+        imagShift = new float[config.subcarrierNum];
+        int delay = config.resampler == null ? 0 : config.resampler.delay();
+        for (int k = 0; k < config.subcarrierNum; ++k) {
+            double x = 2 * Math.PI * k * delay / config.symbolLen;
+            realShift[k] = (float) Math.cos(x);
+            imagShift[k] = (float) Math.sin(x);
+        }
+        realPSKModulatedPilot = new float[config.pilotSubcarrierNum];
+        imagPSKModulatedPilot = new float[config.pilotSubcarrierNum];
+        config.pskMethod.modulate(ModemConfig.generatePilot(config.pilotSubcarrierNum), 0,
+                config.pilotSubcarrierNum, realPSKModulatedPilot, imagPSKModulatedPilot, 0);
+    }
+
+    // Feed the next symbol or marker of the stream, returns the packet once its marker arrives
+    public DemodulatedPacket demodulate(ReceivedSymbol symbol) {
+        if (symbol.packet != packet)
+            begin(symbol.packet, symbol.position);
+        if (!symbol.isMarker()) {
+            add(symbol.samples, 0, symbol.index);
+            return null;
+        }
+        return close(symbol);
+    }
+
+    // Feed symbols and markers in stream order, finished packets are added to results
+    public void demodulate(List<ReceivedSymbol> symbols, List<DemodulatedPacket> results) {
+        int i = 0, size = symbols.size();
+        while (i < size) {
+            ReceivedSymbol symbol = symbols.get(i);
+            int run = 1;
+            if (!symbol.isMarker()) {
+                while (i + run < size && !symbols.get(i + run).isMarker() &&
+                        symbols.get(i + run).packet == symbol.packet)
+                    ++run;
+            }
+            boolean parallel = pool != null && config.parallelSymbolNum != 0 &&
+                    run >= Math.max(2, config.parallelSymbolNum);
+            if (parallel) {
+                if (symbol.packet != packet)
+                    begin(symbol.packet, symbol.position);
+                addRun(symbols, i, run);
+            } else {
+                for (int j = i; j < i + run; ++j) {
+                    DemodulatedPacket result = demodulate(symbols.get(j));
+                    if (result != null)
+                        results.add(result);
+                }
+            }
+            i += run;
+        }
+    }
+
+    private DemodulatedPacket close(ReceivedSymbol marker) {
+        packet = -1;
+        if (marker.symbolNum < 0)
+            return null;
+        if (marker.symbolNum > symbolNum) {
+            listener.log(LogLevel.WARN, String.format(
+                    "W: packet has %d symbols, only %d received", marker.symbolNum, symbolNum));
+            return null;
+        }
+        return new DemodulatedPacket(finish(marker.symbolNum), position);
+    }
+
+    // Start a packet whose first data symbol is at the absolute position
+    public void begin(long packet, long position) {
+        this.packet = packet;
+        this.position = position;
+        symbolNum = 0;
+        realPilotProduct = 0;
+        imagPilotProduct = 0;
+        pilotEnergy = 0;
+    }
+
+    public int symbolNum() {
+        return symbolNum;
+    }
+
+    // Demodulate the symbol in samples[offset, offset + realSymbolLen), index is its position
+    // in the packet and keeps the carrier phase continuous
+    public void add(float[] samples, int offset, int index) {
+        extract(samples, offset, index, realSubcarrier, imagSubcarrier);
+        decide(realSubcarrier, imagSubcarrier);
+    }
+
+    private void addRun(List<ReceivedSymbol> symbols, int from, int count) {
+        if (realRunSubcarrier.length < count) {
+            int capacity = Math.max(count, 2 * realRunSubcarrier.length);
+            realRunSubcarrier = new float[capacity][config.subcarrierNum];
+            imagRunSubcarrier = new float[capacity][config.subcarrierNum];
+        }
+        // A few tasks per worker, so that uneven workers still finish together
+        int grain = Math.max(1, count / (4 * pool.getParallelism()));
+        pool.invoke(new ExtractTask(this, symbols, from, 0, count, grain));
+        for (int i = 0; i < count; ++i)
+            decide(realRunSubcarrier[i], imagRunSubcarrier[i]);
+    }
+
+    // Subcarriers of symbols[from + begin, from + end) into the run arrays from begin
+    private static class ExtractTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final OFDMDemodulator demodulator;
+        private final List<ReceivedSymbol> symbols;
+        private final int from, begin, end, grain;
+
+        ExtractTask(OFDMDemodulator demodulator, List<ReceivedSymbol> symbols,
+                    int from, int begin, int end, int grain) {
+            this.demodulator = demodulator;
+            this.symbols = symbols;
+            this.from = from;
+            this.begin = begin;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - begin <= grain) {
+                for (int i = begin; i < end; ++i) {
+                    ReceivedSymbol symbol = symbols.get(from + i);
+                    demodulator.extract(symbol.samples, 0, symbol.index,
+                            demodulator.realRunSubcarrier[i], demodulator.imagRunSubcarrier[i]);
+                }
+            } else {
+                int middle = (begin + end) >>> 1;
+                invokeAll(new ExtractTask(demodulator, symbols, from, begin, middle, grain),
+                        new ExtractTask(demodulator, symbols, from, middle, end, grain));
+            }
+        }
+    }
+
+    // Carrier removal and DFT of a symbol, safe to run on several threads at once
+    private void extract(float[] samples, int offset, int index,
+                         float[] realOut, float[] imagOut) {
+        int symbolLen = config.symbolLen;
+        int cyclicPrefixLen = config.cyclicPrefixLen;
+        PolyphaseResampler resampler = config.resampler;
+        float[][] work = workspace.get();
+        float[] realMixed = work[0], imagMixed = work[1];
+        float[] realSymbol = work[2], imagSymbol = work[3];
+        long position = (long) index * config.realSymbolLen;
+        if (resampler == null) {
+            // Multiply carrier wave to extract signal, the cyclic prefix is skipped
+            config.carrier.downconvert(position + cyclicPrefixLen, samples,
+                    offset + cyclicPrefixLen, realSymbol, imagSymbol, 0, symbolLen);
+        } else {
+            // The filter needs delay samples on each side, so the window starts delay samples
+            // into the cyclic prefix and the filter reads the prefix before it
+            int delay = resampler.delay();
+            int start = cyclicPrefixLen - 2 * delay;
+            config.carrier.downconvert(position + start, samples, offset + start,
+                    realMixed, imagMixed, 0, symbolLen + 2 * delay);
+            resampler.decimate(realMixed, imagMixed, delay, realSymbol, imagSymbol, 0,
+                    config.basebandSymbolLen);
+        }
+        // DFT, only the subcarrier bins are computed
+        config.subcarrierDFT.forward(realSymbol, imagSymbol, 0, realOut, imagOut);
+        if (resampler != null) {
+            for (int k = 0; k < config.subcarrierNum; ++k) {
+                float real = realOut[k];
+                realOut[k] = real * realShift[k] - imagOut[k] * imagShift[k];
+                imagOut[k] = real * imagShift[k] + imagOut[k] * realShift[k];
+            }
+        }
+    }
+
+    // Pilot correction and PSK decisions of the next symbol of the packet
+    private void decide(float[] realSubcarrier, float[] imagSubcarrier) {
+        int dataSubcarrierNum = config.dataSubcarrierNum;
+        int pilotSubcarrierNum = config.pilotSubcarrierNum;
+        // delta = PSKModulatedPilot / receivedPilot, fitted to the pilots of the packet so
+        // far with weak pilots weighted less
+        for (int i = 0; i < pilotSubcarrierNum; ++i) {
+            int k = config.pilotSubcarrierIndices[i];
+            realPilotProduct += realPSKModulatedPilot[i] * realSubcarrier[k] +
+                    imagPSKModulatedPilot[i] * imagSubcarrier[k];
+            imagPilotProduct += imagPSKModulatedPilot[i] * realSubcarrier[k] -
+                    realPSKModulatedPilot[i] * imagSubcarrier[k];
+            pilotEnergy += realSubcarrier[k] * realSubcarrier[k] +
+                    imagSubcarrier[k] * imagSubcarrier[k];
+        }
+        float realMeanDelta = (float) (realPilotProduct / pilotEnergy);
+        float imagMeanDelta = (float) (imagPilotProduct / pilotEnergy);
+        // Recover signal, receivedData * meanDelta
+        for (int i = 0; i < dataSubcarrierNum; ++i) {
+            int k = config.dataSubcarrierIndices[i];
+            realData[i] = realSubcarrier[k] * realMeanDelta - imagSubcarrier[k] * imagMeanDelta;
+            imagData[i] = realSubcarrier[k] * imagMeanDelta + imagSubcarrier[k] * realMeanDelta;
+        }
+        // Demodulate
+        int dataOffset = symbolNum * dataSubcarrierNum;
+        if (data.length < dataOffset + dataSubcarrierNum)
+            data = Arrays.copyOf(data, Math.max(2 * data.length,
+                    dataOffset + dataSubcarrierNum));
+        config.pskMethod.demodulate(realData, imagData, 0, dataSubcarrierNum, data, dataOffset);
+        ++symbolNum;
+    }
+
+    // Data of the symbols demodulated so far, dataSubcarrierNum per symbol
+    public int[] data() {
+        return data;
+    }
+
+    // Data of the first symbolNum symbols, the rest are dropped. The channel estimate logged
+    // is over every symbol received.
+    public int[] finish(int symbolNum) {
+        float realMeanDelta = (float) (realPilotProduct / pilotEnergy);
+        float imagMeanDelta = (float) (imagPilotProduct / pilotEnergy);
+        listener.log(LogLevel.INFO,
+                String.format("I: abs: %f angle: %f",
+                        1 / Math.sqrt(realMeanDelta * realMeanDelta +
+                                imagMeanDelta * imagMeanDelta),
+                        -Math.atan2(imagMeanDelta, realMeanDelta) / Math.PI * 180));
+        int[] result = Arrays.copyOf(data, symbolNum * config.dataSubcarrierNum);
+        this.symbolNum = 0;
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package io.szp.soundmessage;
+
+// Sender counterpart of OFDMDemodulator: turns the data of a packet into its sound, silence,
+// the start preambles, the data symbols, the end preambles and silence again. The sound is
+// synthesized a symbol at a time as it is read, so a packet is never held as a whole.
+public class OFDMModulator {
+    // Amplitude of the data symbols relative to the preambles
+    private static final float SOUND_AMPLIFIER = 300;
+    // Headroom left when the sound is converted to PCM
+    public static final float OUTPUT_GAIN = 0.8f;
+    private static final float SHORT_MAX = 32768;
+
+    private final ModemConfig config;
+    private final float[] realPSKModulatedPilot, imagPSKModulatedPilot;
+    private final float[] realData, imagData;
+    private final float[] realSubcarriers, imagSubcarriers;
+    private final float[] realBaseband, imagBaseband;
+    private final float[] realSymbol, imagSymbol;
+    // Sound of the current symbol
+    private final float[] symbolSound;
+
+    private int[] data = new int[0];
+    private int symbolNum;
+    private int space;
+    private long length;
+    // Position of the next sample to be read, and the symbol in symbolSound, -1 if none
+    private long position;
+    private int renderedSymbol = -1;
+
+    public OFDMModulator(ModemConfig config) {
+        this.config = config;
+        realPSKModulatedPilot = new float[config.pilotSubcarrierNum];
+        imagPSKModulatedPilot = new float[config.pilotSubcarrierNum];
+        config.pskMethod.modulate(ModemConfig.generatePilot(config.pilotSubcarrierNum), 0,
+                config.pilotSubcarrierNum, realPSKModulatedPilot, imagPSKModulatedPilot, 0);
+        realData = new float[config.dataSubcarrierNum];
+        imagData = new float[config.dataSubcarrierNum];
+        realSubcarriers = new float[config.subcarrierNum];
+        imagSubcarriers = new float[config.subcarrierNum];
+        realBaseband = new float[config.basebandSymbolLen];
+        imagBaseband = new float[config.basebandSymbolLen];
+        realSymbol = new float[config.realSymbolLen];
+        imagSymbol = new float[config.realSymbolLen];
+        symbolSound = new float[config.realSymbolLen];
+    }
+
+    // Start the sound of a packet, data has dataSubcarrierNum values per symbol
+    public void begin(int[] data) {
+        int symbolNum = data.length / config.dataSubcarrierNum;
+        if (data.length != symbolNum * config.dataSubcarrierNum)
+            throw new IllegalArgumentException("Wrong data input size");
+        this.data = data;
+        this.symbolNum = symbolNum;
+        space = Math.round(config.realSymbolLen * config.spaceFactor);
+        length = 2L * space + (long) config.realSymbolLen *
+                (config.startPreambleNum + symbolNum + config.endPreambleNum);
+        position = 0;
+        renderedSymbol = -1;
+    }
+
+    // Samples of the sound of the packet
+    public long length() {
+        return length;
+    }
+
+    public long remaining() {
+        return length - position;
+    }
+
+    // Next samples of the sound, returns the number written, 0 once the packet is over
+    public int read(float[] output, int offset, int length) {
+        int count = (int) Math.min(length, remaining());
+        int realSymbolLen = config.realSymbolLen;
+        long symbolsEnd = this.length - space;
+        for (int i = 0; i < count; ) {
+            long position = this.position + i;
+            int n;
+            if (position < space || position >= symbolsEnd) {
+                n = (int) Math.min(count - i, position < space ?
+                        space - position : this.length - position);
+                for (int j = 0; j < n; ++j)
+                    output[offset + i + j] = 0;
+            } else {
+                int symbol = (int) ((position - space) / realSymbolLen);
+                int symbolOffset = (int) ((position - space) % realSymbolLen);
+                n = Math.min(count - i, realSymbolLen - symbolOffset);
+                System.arraycopy(symbolSound(symbol), symbolOffset, output, offset + i, n);
+            }
+            i += n;
+        }
+        position += count;
+        return count;
+    }
+
+    // 16-bit PCM of input[offset, offset + length) with the output gain, as played and as
+    // written to files. Saturated and truncated without branches or rounding calls, so that the
+    // loop can be vectorized.
+    public static void toPCM16(float[] input, int offset, short[] output, int outOffset,
+                               int length) {
+        float scale = OUTPUT_GAIN * SHORT_MAX;
+        for (int i = 0; i < length; ++i)
+            output[outOffset + i] = (short) Math.max(-SHORT_MAX,
+                    Math.min(SHORT_MAX - 1, input[offset + i] * scale));
+    }
+
+    // Whole sound of a packet
+    public float[] modulate(int[] data) {
+        begin(data);
+        if (length > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Packet too long");
+        float[] sound = new float[(int) length];
+        read(sound, 0, sound.length);
+        return sound;
+    }
+
+    // Sound of the symbol-th symbol after the leading silence
+    private float[] symbolSound(int symbol) {
+        if (symbol == renderedSymbol)
+            return symbolSound;
+        int startPreambleNum = config.startPreambleNum;
+        if (symbol < startPreambleNum)
+            System.arraycopy(config.startPreambleSymbol, 0, symbolSound, 0, config.realSymbolLen);
+        else if (symbol < startPreambleNum + symbolNum)
+            renderDataSymbol(symbol - startPreambleNum);
+        else
+            System.arraycopy(config.endPreambleSymbol, 0, symbolSound, 0, config.realSymbolLen);
+        renderedSymbol = symbol;
+        return symbolSound;
+    }
+
+    private void renderDataSymbol(int index) {
+        int dataSubcarrierNum = config.dataSubcarrierNum;
+        int pilotSubcarrierNum = config.pilotSubcarrierNum;
+        int cyclicPrefixLen = config.cyclicPrefixLen;
+        int realSymbolLen = config.realSymbolLen;
+        int basebandSymbolLen = config.basebandSymbolLen;
+        PolyphaseResampler resampler = config.resampler;
+        config.pskMethod.modulate(data, index * dataSubcarrierNum, dataSubcarrierNum,
+                realData, imagData, 0);
+        // Only the subcarrier bins are nonzero, so each symbol is synthesized from them directly,
+        // at the baseband rate and interpolated when it is lower. The smaller inverse DFT
+        // scales by 1 / basebandSymbolLen, the subcarriers make up for it.
+        float scale = (float) basebandSymbolLen / config.symbolLen;
+        for (int j = 0; j < dataSubcarrierNum; ++j) {
+            realSubcarriers[config.dataSubcarrierIndices[j]] = scale * realData[j];
+            imagSubcarriers[config.dataSubcarrierIndices[j]] = scale * imagData[j];
+        }
+        for (int j = 0; j < pilotSubcarrierNum; ++j) {
+            realSubcarriers[config.pilotSubcarrierIndices[j]] = scale * realPSKModulatedPilot[j];
+            imagSubcarriers[config.pilotSubcarrierIndices[j]] = scale * imagPSKModulatedPilot[j];
+        }
+        if (resampler == null) {
+            config.subcarrierDFT.inverse(realSubcarriers, imagSubcarriers,
+                    realSymbol, imagSymbol, cyclicPrefixLen);
+        } else {
+            config.subcarrierDFT.inverse(realSubcarriers, imagSubcarriers,
+                    realBaseband, imagBaseband, 0);
+            resampler.interpolateCyclic(realBaseband, imagBaseband, 0, basebandSymbolLen,
+                    realSymbol, imagSymbol, cyclicPrefixLen);
+        }
+        System.arraycopy(realSymbol, cyclicPrefixLen + config.cyclicPrefixStart,
+                realSymbol, 0, cyclicPrefixLen);
+        System.arraycopy(imagSymbol, cyclicPrefixLen + config.cyclicPrefixStart,
+                imagSymbol, 0, cyclicPrefixLen);
+        // The carrier phase runs on from the first data symbol
+        config.carrier.upconvert((long) index * realSymbolLen, realSymbol, imagSymbol, 0,
+                symbolSound, 0, realSymbolLen);
+        for (int i = 0; i < realSymbolLen; ++i)
+            symbolSound[i] *= SOUND_AMPLIFIER;
+        // The first samples of the data have always been left silent
+        if (index == 0) {
+            for (int i = 0; i < Math.min(9, realSymbolLen); ++i)
+                symbolSound[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package io.szp.soundmessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Decodes recordings without an audio device. WAV files (16-bit or float PCM) and raw 16-bit
+// little-endian mono PCM are memory-mapped and run through the same synchronization,
+// demodulation and decoding stages as the receiver, all on one thread per file. Several files
+// are decoded in parallel, and the subcarriers of the symbols of a file are extracted in
+// parallel in runs of parallelSymbolNum.
+public class OfflineDecoder {
+    // Samples handed to the synchronizer at a time
+    private static final int WINDOW_LEN = 4096;
+    // Bytes mapped at a time, larger files are mapped region by region
+    private static final int REGION_BYTES = 64 << 20;
+    // Free symbols kept for a window and a correlator block of symbols at the start of a
+    // packet, demodulation runs before fewer are left
+    private static final int WINDOW_SYMBOL_NUM = 32;
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    public static class Packet {
+        public final File file;
+        // Sample offset of the first data symbol in the file
+        public final long position;
+        // Null for a corrupted packet
+        public final String text;
+
+        public Packet(File file, long position, String text) {
+            this.file = file;
+            this.position = position;
+            this.text = text;
+        }
+    }
+
+    public static class Result {
+        public final File file;
+        public final List<Packet> packets = new ArrayList<>();
+        public float sampleFreq;
+        public long sampleNum;
+        // Bytes of audio data
+        public long byteNum;
+        public long nanos;
+        // Null if the file could be read
+        public String error;
+
+        public Result(File file) {
+            this.file = file;
+        }
+    }
+
+    private static class Format {
+        float sampleFreq;
+        int channelNum = 1;
+        int sampleBytes = 2;
+        boolean floating;
+        long dataOffset;
+        long dataBytes;
+    }
+
+    private final ModemConfig config;
+    private final ReceiverListener listener;
+
+    // The listener gets the logs of every file, possibly on several threads at once
+    public OfflineDecoder(ModemConfig config, ReceiverListener listener) {
+        this.config = config;
+        this.listener = listener;
+    }
+
+    // Decode the files on threadNum threads, which also share the parallel extraction, results
+    // are in the order of the files
+    public List<Result> decode(List<File> files, int threadNum) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threadNum, files.size())));
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, threadNum));
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (final File file: files) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return decode(file, pool);
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future: futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+            pool.shutdown();
+        }
+    }
+
+    // Decode the file on the calling thread alone
+    public Result decode(File file) {
+        return decode(file, null);
+    }
+
+    private Result decode(File file, ForkJoinPool pool) {
+        Result result = new Result(file);
+        long begin = System.nanoTime();
+        try (RandomAccessFile stream = new RandomAccessFile(file, "r")) {
+            FileChannel channel = stream.getChannel();
+            Format format = readFormat(file, channel);
+            result.sampleFreq = format.sampleFreq;
+            if (format.sampleFreq != config.sampleFreq) {
+                result.error = String.format(Locale.US, "sample rate %.0f Hz, expected %.0f Hz",
+                        format.sampleFreq, config.sampleFreq);
+                return result;
+            }
+            new FileRunnable(file, channel, format, result, pool).run();
+        } catch (IOException e) {
+            result.error = e.getMessage();
+        } finally {
+            result.nanos = System.nanoTime() - begin;
+        }
+        return result;
+    }
+
+    private Format readFormat(File file, FileChannel channel) throws IOException {
+        Format format = new Format();
+        String name = file.getName().toLowerCase(Locale.US);
+        if (!name.endsWith(".wav")) {
+            // Headerless PCM: signed 16-bit little-endian mono samples at the sample rate of the
+            // config
+            format.sampleFreq = config.sampleFreq;
+            format.dataBytes = channel.size();
+            return format;
+        }
+        ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != 0x46464952 || header.getInt(8) != 0x45564157)
+            throw new IOException("not a RIFF WAVE file");
+        ByteBuffer chunk = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        boolean formatFound = false;
+        long position = 12;
+        while (position + 8 <= channel.size()) {
+            chunk.clear();
+            chunk.limit(8);
+            readFully(channel, chunk, position);
+            int id = chunk.getInt(0);
+            long size = chunk.getInt(4) & 0xFFFFFFFFL;
+            position += 8;
+            if (id == 0x20746D66) {
+                // "fmt "
+                chunk.clear();
+                chunk.limit((int) Math.min(size, chunk.capacity()));
+                if (chunk.limit() < 16)
+                    throw new IOException("invalid format chunk");
+                readFully(channel, chunk, position);
+                int tag = chunk.getShort(0) & 0xFFFF;
+                if (tag == WAVE_FORMAT_EXTENSIBLE && chunk.limit() >= 26)
+                    tag = chunk.getShort(24) & 0xFFFF;
+                format.channelNum = chunk.getShort(2) & 0xFFFF;
+                format.sampleFreq = chunk.getInt(4);
+                int bits = chunk.getShort(14) & 0xFFFF;
+                if (tag == WAVE_FORMAT_PCM && bits == 16) {
+                    format.sampleBytes = 2;
+                } else if (tag == WAVE_FORMAT_IEEE_FLOAT && bits == 32) {
+                    format.sampleBytes = 4;
+                    format.floating = true;
+                } else {
+                    throw new IOException(String.format(Locale.US,
+                            "unsupported format %d with %d bits", tag, bits));
+                }
+                if (format.channelNum == 0)
+                    throw new IOException("no channels");
+                formatFound = true;
+            } else if (id == 0x61746164) {
+                // "data", recorders that are cut off leave its size too large
+                if (!formatFound)
+                    throw new IOException("data before format chunk");
+                format.dataOffset = position;
+                format.dataBytes = Math.min(size, channel.size() - position);
+                return format;
+            }
+            // Chunks are padded to even sizes
+            position += size + (size & 1);
+        }
+        throw new IOException("no data chunk");
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0)
+                throw new IOException("unexpected end of file");
+            position += count;
+        }
+    }
+
+    // Runs the receiver stages over one file
+    private class FileRunnable implements Runnable, ReceiverListener {
+        private final File file;
+        private final FileChannel channel;
+        private final Format format;
+        private final Result result;
+        private final BlockingQueue<ReceivedSymbol> freeSymbols;
+        private final BlockingQueue<ReceivedSymbol> symbolQueue;
+        private final PacketSynchronizer synchronizer;
+        private final OFDMDemodulator demodulator;
+        private final PayloadDecoder decoder;
+        private final List<ReceivedSymbol> symbols = new ArrayList<>();
+        private final List<DemodulatedPacket> packets = new ArrayList<>();
+
+        FileRunnable(File file, FileChannel channel, Format format, Result result,
+                     ForkJoinPool pool) {
+            this.file = file;
+            this.channel = channel;
+            this.format = format;
+            this.result = result;
+            // With a pool, symbols are left to queue up to a run extracted in parallel
+            int symbolNum = WINDOW_SYMBOL_NUM + (pool == null ? 0 : config.parallelSymbolNum);
+            freeSymbols = new ArrayBlockingQueue<>(symbolNum);
+            for (int i = 0; i < symbolNum; ++i)
+                freeSymbols.add(new ReceivedSymbol(config.realSymbolLen));
+            symbolQueue = new LinkedBlockingQueue<>();
+            synchronizer = new PacketSynchronizer(config, this, freeSymbols, symbolQueue);
+            demodulator = new OFDMDemodulator(config, this, pool);
+            decoder = new PayloadDecoder(config, this);
+        }
+
+        @Override
+        public void run() {
+            int frameBytes = format.channelNum * format.sampleBytes;
+            long frameNum = format.dataBytes / frameBytes;
+            long regionFrameNum = REGION_BYTES / frameBytes;
+            float[] window = new float[WINDOW_LEN];
+            float[] frames = new float[WINDOW_LEN * format.channelNum];
+            short[] shortFrames = format.floating ? null : new short[frames.length];
+            try {
+                for (long frame = 0; frame < frameNum; frame += regionFrameNum) {
+                    int count = (int) Math.min(regionFrameNum, frameNum - frame);
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY,
+                            format.dataOffset + frame * frameBytes, (long) count * frameBytes);
+                    region.order(ByteOrder.LITTLE_ENDIAN);
+                    // One view of the region, each window reads on from where the last stopped
+                    FloatBuffer floatRegion = format.floating ? region.asFloatBuffer() : null;
+                    ShortBuffer shortRegion = format.floating ? null : region.asShortBuffer();
+                    for (int i = 0; i < count; i += WINDOW_LEN) {
+                        int length = Math.min(WINDOW_LEN, count - i);
+                        int sampleNum = length * format.channelNum;
+                        if (format.floating) {
+                            floatRegion.get(frames, 0, sampleNum);
+                        } else {
+                            shortRegion.get(shortFrames, 0, sampleNum);
+                            for (int j = 0; j < sampleNum; ++j)
+                                frames[j] = shortFrames[j] / 32768f;
+                        }
+                        // Channels are mixed down
+                        if (format.channelNum == 1) {
+                            System.arraycopy(frames, 0, window, 0, length);
+                        } else {
+                            for (int j = 0; j < length; ++j) {
+                                float sum = 0;
+                                for (int c = 0; c < format.channelNum; ++c)
+                                    sum += frames[j * format.channelNum + c];
+                                window[j] = sum / format.channelNum;
+                            }
+                        }
+                        synchronizer.process(window, 0, length);
+                        if (freeSymbols.size() <= WINDOW_SYMBOL_NUM)
+                            demodulate();
+                    }
+                }
+                synchronizer.flush();
+                demodulate();
+            } catch (IOException e) {
+                result.error = e.getMessage();
+            }
+            result.sampleNum = frameNum;
+            result.byteNum = frameNum * frameBytes;
+        }
+
+        // Demodulate and decode what the synchronizer has collected, which frees its symbols
+        private void demodulate() {
+            symbolQueue.drainTo(symbols);
+            demodulator.demodulate(symbols, packets);
+            for (ReceivedSymbol symbol: symbols) {
+                if (!symbol.isMarker())
+                    freeSymbols.offer(symbol);
+            }
+            symbols.clear();
+            for (DemodulatedPacket packet: packets)
+                decoder.decode(packet);
+            packets.clear();
+        }
+
+        @Override
+        public void log(LogLevel level, String text) {
+            listener.log(level, file.getName() + ": " + text);
+        }
+
+        @Override
+        public void onPacket(long position, String text) {
+            result.packets.add(new Packet(file, position, text));
+            listener.onPacket(position, text);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package io.szp.soundmessage;
+
+import java.util.concurrent.BlockingQueue;
+
+// Synchronization stage of the receiver: finds the start and end preambles in the sample
+// stream. Once the start is locked, every complete data symbol is handed on right away as a
+// ReceivedSymbol taken from a pool, the consumer returns them. The end of the packet follows
+// as a marker with the number of data symbols. The end is either found at the end preamble,
+// or after the number of symbols in the header, which is demodulated here as well.
+public class PacketSynchronizer {
+    private static final int START_FILTER = 0;
+    private static final int END_FILTER = 1;
+    // Symbols of new samples per correlator block, larger blocks amortize the FFT better
+    private static final int CORRELATOR_HOP_SYMBOLS = 3;
+    // Seconds of received audio between squelch duty cycle reports
+    private static final float SQUELCH_REPORT_INTERVAL = 10;
+
+    private final ModemConfig config;
+    private final ReceiverListener listener;
+    private final BlockingQueue<ReceivedSymbol> freeSymbols;
+    private final BlockingQueue<ReceivedSymbol> symbols;
+    private final int realSymbolLen;
+    // Symbols collected before a packet is too long, 0 for unlimited
+    private final int maxSymbolNum;
+
+    private final StreamingCorrelator correlator;
+    private final BandEnergyDetector squelch;
+    private final SignalProcessing.RunningStats starts;
+    // Null when packets end after their header
+    private final SignalProcessing.RunningStats ends;
+    private final OFDMDemodulator headerDemodulator;
+    private long squelchBlockNum;
+    private long squelchSkippedNum;
+    private long startPosition;
+    private boolean started;
+    private long packetNum;
+    // Absolute position of the first data symbol
+    private long dataPosition;
+    // Symbol being filled and the number of samples in it
+    private ReceivedSymbol symbol;
+    private int symbolIndex;
+    private int filled;
+    // Data symbols according to the header, -1 until it is received
+    private int packetSymbolNum;
+
+    public PacketSynchronizer(ModemConfig config, ReceiverListener listener,
+                              BlockingQueue<ReceivedSymbol> freeSymbols,
+                              BlockingQueue<ReceivedSymbol> symbols) {
+        this.config = config;
+        this.listener = listener;
+        this.freeSymbols = freeSymbols;
+        this.symbols = symbols;
+        realSymbolLen = config.realSymbolLen;
+        // The end preamble and up to a correlator block past it are collected before the
+        // end is detected
+        if (config.symbolNumLimit == 0)
+            maxSymbolNum = 0;
+        else if (config.headerTermination)
+            maxSymbolNum = config.symbolNumLimit;
+        else
+            maxSymbolNum = config.symbolNumLimit + config.endPreambleNum +
+                    CORRELATOR_HOP_SYMBOLS + 1;
+        correlator = new StreamingCorrelator(new float[][] {
+                config.startPreambleSymbol, config.endPreambleSymbol
+        }, CORRELATOR_HOP_SYMBOLS * realSymbolLen);
+        squelch = new BandEnergyDetector(config.sampleFreq, config.preambleLowFreq,
+                config.preambleHighFreq, config.squelchLevel, config.squelchHysteresis);
+        starts = new SignalProcessing.RunningStats(config.startPreambleNum);
+        if (config.headerTermination) {
+            ends = null;
+            headerDemodulator = new OFDMDemodulator(config, listener);
+        } else {
+            ends = new SignalProcessing.RunningStats(config.endPreambleNum);
+            headerDemodulator = null;
+        }
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    // Absolute position of the next sample to be processed
+    public long position() {
+        return correlator.inputPosition();
+    }
+
+    // Give up the packet in progress, e.g. when the stream has a gap
+    public void dropPacket() {
+        if (started) {
+            close(-1);
+            listener.log(LogLevel.WARN, "W: packet dropped");
+        }
+    }
+
+    // Process silence after the end of a finite stream, so that its last samples are searched
+    // as well. A packet still unfinished after it is dropped.
+    public void flush() {
+        process(new float[correlator.blockLength()], 0, correlator.blockLength());
+        dropPacket();
+    }
+
+    public void process(float[] window, int offset, int length) {
+        int consumed = offset, end = offset + length;
+        while (consumed < end) {
+            int count = correlator.write(window, consumed, end - consumed);
+            squelch.process(window, consumed, count);
+            if (started)
+                collect(window, consumed, count, correlator.inputPosition() - count);
+            consumed += count;
+            if (correlator.blockReady()) {
+                long position = correlator.blockPosition();
+                if (!squelchBlock(position)) {
+                    for (int i = 0; i < correlator.hop(); i += realSymbolLen)
+                        processSegment(position + i, i);
+                }
+                correlator.advance();
+            }
+        }
+    }
+
+    // Absolute position of the next sample of the packet
+    private long nextPosition() {
+        return dataPosition + (long) symbolIndex * realSymbolLen + filled;
+    }
+
+    // Cut input[offset, offset + length), which is at the absolute position, into symbols
+    private void collect(float[] input, int offset, int length, long position) {
+        long skip = nextPosition() - position;
+        if (skip >= length)
+            return;
+        if (skip > 0) {
+            offset += skip;
+            length -= skip;
+        }
+        while (started && length > 0 && reserveSymbol()) {
+            int count = Math.min(length, realSymbolLen - filled);
+            System.arraycopy(input, offset, symbol.samples, filled, count);
+            offset += count;
+            length -= count;
+            fill(count);
+        }
+    }
+
+    private boolean reserveSymbol() {
+        if (symbol == null) {
+            symbol = freeSymbols.poll();
+            if (symbol == null) {
+                // Demodulation has fallen behind the stream
+                close(-1);
+                listener.log(LogLevel.WARN, "W: no free symbol buffer, packet dropped");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void fill(int count) {
+        filled += count;
+        if (filled < realSymbolLen)
+            return;
+        if (headerDemodulator != null && symbolIndex < config.headerSymbolNum)
+            headerDemodulator.add(symbol.samples, 0, symbolIndex);
+        symbol.packet = packetNum;
+        symbol.index = symbolIndex;
+        symbol.position = dataPosition + (long) symbolIndex * realSymbolLen;
+        if (!symbols.offer(symbol)) {
+            // Demodulation has stopped taking symbols, close() returns this one to the pool
+            close(-1);
+            listener.log(LogLevel.WARN, "W: demodulation queue full, packet dropped");
+            return;
+        }
+        symbol = null;
+        filled = 0;
+        ++symbolIndex;
+        if (headerDemodulator != null && symbolIndex == config.headerSymbolNum) {
+            packetSymbolNum = SignalProcessing.decodeHeader(headerDemodulator.data(),
+                    config.bits, config.dataSubcarrierNum);
+            listener.log(LogLevel.DEBUG, String.format("D: header symbol num: %d",
+                    packetSymbolNum));
+            if (packetSymbolNum < 0) {
+                close(-1);
+                listener.log(LogLevel.WARN, "W: invalid packet header, packet dropped");
+                return;
+            }
+        }
+        if (packetSymbolNum >= 0 && symbolIndex >= packetSymbolNum) {
+            listener.log(LogLevel.INFO, String.format("I: ended: %d", nextPosition()));
+            close(packetSymbolNum);
+        } else if (maxSymbolNum != 0 && symbolIndex >= maxSymbolNum) {
+            close(-1);
+            listener.log(LogLevel.WARN, "W: packet too long");
+        }
+    }
+
+    // Finish the packet with symbolNum data symbols, -1 if it is dropped
+    private void close(int symbolNum) {
+        if (symbol != null) {
+            freeSymbols.offer(symbol);
+            symbol = null;
+        }
+        filled = 0;
+        // Without room for the marker the packet is given up as well, the demodulator starts
+        // over when the symbols of the next packet arrive
+        if (!symbols.offer(ReceivedSymbol.marker(packetNum, dataPosition, symbolNum)) &&
+                symbolNum >= 0)
+            listener.log(LogLevel.WARN, "W: demodulation queue full, packet dropped");
+        started = false;
+    }
+
+    // Whether the start search can skip the block, because there has been no energy in
+    // the preamble band since the block began and no start candidate is pending
+    private boolean squelchBlock(long position) {
+        if (started)
+            return false;
+        boolean skipped = starts.isEmpty() && squelch.lastOpenPosition() < position;
+        ++squelchBlockNum;
+        if (skipped)
+            ++squelchSkippedNum;
+        long reportBlockNum = Math.max(1, Math.round(
+                SQUELCH_REPORT_INTERVAL * config.sampleFreq / correlator.hop()));
+        if (squelchBlockNum >= reportBlockNum) {
+            listener.log(LogLevel.DEBUG, String.format(
+                    "D: squelch skipped %.1f%% of start searches, level: %.1f dBFS",
+                    100f * squelchSkippedNum / squelchBlockNum, squelch.level()));
+            squelchBlockNum = 0;
+            squelchSkippedNum = 0;
+        }
+        return skipped;
+    }
+
+    // Correlation lags [0, realSymbolLen) from the absolute position of the segment
+    private void processSegment(long position, int offset) {
+        if (!started) {
+            float[] startCor = correlator.correlation(START_FILTER);
+            int startLag = SignalProcessing.argmax(startCor, offset, realSymbolLen);
+            float value = startCor[offset + startLag] /
+                    SignalProcessing.meanAbs(startCor, offset, realSymbolLen);
+            if (value > config.startEndThreshold) {
+                starts.add(startLag);
+                listener.log(LogLevel.DEBUG, String.format("D: startCorMax: %f index: %d", value, startLag));
+                if (starts.isFull()) {
+                    float mean = starts.mean();
+                    float dev = starts.stdev();
+                    listener.log(LogLevel.DEBUG, String.format("D: startCandidate mean: %f dev: %f", mean, dev));
+                    if (dev <= config.lagStdevLimit)
+                        start(position + Math.round(mean));
+                }
+                listener.onStartCorrelation(startCor, offset, realSymbolLen);
+            } else {
+                starts.clear();
+            }
+        } else if (ends != null && position > startPosition) {
+            float[] endCor = correlator.correlation(END_FILTER);
+            int endLag = SignalProcessing.argmax(endCor, offset, realSymbolLen);
+            float value = endCor[offset + endLag] /
+                    SignalProcessing.meanAbs(endCor, offset, realSymbolLen);
+            if (value > config.startEndThreshold) {
+                ends.add(endLag);
+                listener.log(LogLevel.DEBUG, String.format("D: endCorMax: %f index: %d", value, endLag));
+                if (ends.isFull()) {
+                    float mean = ends.mean();
+                    float dev = ends.stdev();
+                    listener.log(LogLevel.DEBUG, String.format("D: endCandidate mean: %f dev: %f", mean, dev));
+                    if (dev <= config.lagStdevLimit)
+                        end(position + Math.round(mean));
+                }
+                listener.onEndCorrelation(endCor, offset, realSymbolLen);
+            } else {
+                ends.clear();
+            }
+        }
+    }
+
+    private void start(long position) {
+        listener.log(LogLevel.INFO, String.format("I: started: %d", position));
+        startPosition = position;
+        // Data starts after the last start preamble symbol
+        dataPosition = position + realSymbolLen;
+        symbolIndex = 0;
+        filled = 0;
+        packetSymbolNum = -1;
+        ++packetNum;
+        if (ends != null)
+            ends.clear();
+        else
+            headerDemodulator.begin(packetNum, dataPosition);
+        started = true;
+        // Samples of the data that are already received are still held by the correlator
+        int headLen = Math.max(0, correlator.availableSamples(dataPosition));
+        listener.log(LogLevel.DEBUG, String.format("D: start write: %d", headLen));
+        while (started && headLen > 0 && reserveSymbol()) {
+            int count = Math.min(headLen, realSymbolLen - filled);
+            correlator.copySamples(nextPosition(), symbol.samples, filled, count);
+            headLen -= count;
+            fill(count);
+        }
+    }
+
+    private void end(long position) {
+        listener.log(LogLevel.INFO, String.format("I: ended: %d", position));
+        // Symbols already run past the end, keep [start, end) without the last start
+        // preamble symbol and the end preamble
+        int packetLen = (int) (position - startPosition);
+        listener.log(LogLevel.DEBUG, String.format("D: packet len: %d", packetLen));
+        int length = packetLen - config.endPreambleNum * realSymbolLen;
+        int symbolNum = Math.round((float) length / realSymbolLen);
+        listener.log(LogLevel.INFO, String.format("I: real len: %d expected len: %d",
+                length, symbolNum * realSymbolLen));
+        close(symbolNum > 0 ? symbolNum : -1);
+    }
+}
@@ -0,0 +1,31 @@
+package io.szp.soundmessage;
+
+// Decoding stage of the receiver: turns the demodulated symbols back into text
+public class PayloadDecoder {
+    private final ModemConfig config;
+    private final ReceiverListener listener;
+
+    public PayloadDecoder(ModemConfig config, ReceiverListener listener) {
+        this.config = config;
+        this.listener = listener;
+    }
+
+    // Returns null for a corrupted packet
+    public String decode(DemodulatedPacket packet) {
+        StringBuilder str = new StringBuilder();
+        for (int i: packet.data) {
+            str.append(i);
+            str.append(' ');
+        }
+        listener.log(LogLevel.WARN, String.format("W: receiver data: %s", str.toString()));
+        String text = SignalProcessing.decodeText(packet.data, config.bits,
+                config.dataSubcarrierNum);
+        if (text == null) {
+            listener.log(LogLevel.ERROR, "Corrupted packet");
+        } else {
+            listener.log(LogLevel.ERROR, String.format("Receive packet: %s", text));
+        }
+        listener.onPacket(packet.position, text);
+        return text;
+    }
+}
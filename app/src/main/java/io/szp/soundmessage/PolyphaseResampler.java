@@ -0,0 +1,86 @@
+package io.szp.soundmessage;
+
+// Linear phase low-pass FIR that changes the rate of a complex baseband signal by an integer
+// factor. Decimation only computes the outputs that are kept, interpolation runs the filter
+// as factor polyphase branches so that the zeros between input samples are never multiplied.
+public class PolyphaseResampler {
+    // Taps per polyphase branch when the length is not limited
+    private static final int TAPS_PER_PHASE = 8;
+
+    private final int factor;
+    private final int halfLen;
+    // Symmetric taps with unit gain at DC, h[halfLen] is the center
+    private final float[] taps;
+
+    // Filter of at most maxLen taps, a shorter filter is used when a longer one does not fit
+    public PolyphaseResampler(int factor, int maxLen) {
+        if (factor < 1)
+            throw new IllegalArgumentException("Non-positive factor");
+        if (maxLen < 1)
+            throw new IllegalArgumentException("Non-positive filter length");
+        this.factor = factor;
+        halfLen = Math.min(TAPS_PER_PHASE * factor, maxLen - 1) / 2;
+        int len = 2 * halfLen + 1;
+        taps = new float[len];
+        // Windowed sinc with the cutoff at the output Nyquist frequency
+        double cutoff = 0.5 / factor, sum = 0;
+        double[] h = new double[len];
+        for (int i = 0; i < len; ++i) {
+            int k = i - halfLen;
+            double sinc = k == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * k) / (Math.PI * k);
+            double window = len == 1 ? 1 : 0.54 - 0.46 * Math.cos(2 * Math.PI * i / (len - 1));
+            h[i] = sinc * window;
+            sum += h[i];
+        }
+        for (int i = 0; i < len; ++i)
+            taps[i] = (float) (h[i] / sum);
+    }
+
+    public int factor() {
+        return factor;
+    }
+
+    // Delay of the filter in input samples, also the samples it needs on each side
+    public int delay() {
+        return halfLen;
+    }
+
+    // out[m] is the filtered input at offset + m * factor, which reads the input from
+    // offset - delay() to offset + (length - 1) * factor + delay()
+    public void decimate(float[] real, float[] imag, int offset,
+                         float[] outReal, float[] outImag, int outOffset, int length) {
+        int len = taps.length;
+        for (int m = 0; m < length; ++m) {
+            int start = offset + m * factor - halfLen;
+            float sumReal = 0, sumImag = 0;
+            for (int i = 0; i < len; ++i) {
+                sumReal += taps[i] * real[start + i];
+                sumImag += taps[i] * imag[start + i];
+            }
+            outReal[outOffset + m] = sumReal;
+            outImag[outOffset + m] = sumImag;
+        }
+    }
+
+    // Interpolate one period of a periodic signal, real/imag[offset, offset + length) to
+    // outReal/outImag[outOffset, outOffset + length * factor)
+    public void interpolateCyclic(float[] real, float[] imag, int offset, int length,
+                                  float[] outReal, float[] outImag, int outOffset) {
+        int outLength = length * factor;
+        for (int n = 0; n < outLength; ++n) {
+            // Only the taps on input samples are nonzero, they form the branch of n
+            int branch = (n + halfLen) % factor;
+            float sumReal = 0, sumImag = 0;
+            for (int i = branch; i < taps.length; i += factor) {
+                int index = ((n + halfLen - i) / factor) % length;
+                if (index < 0)
+                    index += length;
+                sumReal += taps[i] * real[offset + index];
+                sumImag += taps[i] * imag[offset + index];
+            }
+            // The zeros between input samples take factor - 1 of every factor of the energy
+            outReal[outOffset + n] = factor * sumReal;
+            outImag[outOffset + n] = factor * sumImag;
+        }
+    }
+}
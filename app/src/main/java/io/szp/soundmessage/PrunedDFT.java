@@ -0,0 +1,182 @@
+package io.szp.soundmessage;
+
+import java.util.Arrays;
+
+// DFT of length n where only a few output bins are needed. A Goertzel bank is used
+// while it is cheaper than a full FFT, otherwise the full FFT is run and the bins are picked.
+public class PrunedDFT {
+    private final int n;
+    private final int[] bins;
+    private final boolean goertzel;
+    private final FFTPlan plan;
+    private final double[] binCos, binSin;
+
+    private final ThreadLocal<float[][]> workspace = new ThreadLocal<float[][]>() {
+        @Override
+        protected float[][] initialValue() {
+            return new float[][] { new float[n], new float[n] };
+        }
+    };
+
+    public PrunedDFT(int n, int[] bins) {
+        if (n < 1)
+            throw new IllegalArgumentException("Non-positive length");
+        for (int bin: bins) {
+            if (bin < 0 || bin >= n)
+                throw new IllegalArgumentException("Bin out of range");
+        }
+        this.n = n;
+        this.bins = bins.clone();
+        // Goertzel costs about 4 flops per sample and bin (two real recursions for complex
+        // input), a radix-2 FFT about 5 flops per sample and level
+        int levels = 32 - Integer.numberOfLeadingZeros(n - 1);
+        goertzel = 4 * bins.length <= 5 * levels;
+        plan = goertzel ? null : FFTPlan.get(n);
+        binCos = new double[bins.length];
+        binSin = new double[bins.length];
+        for (int i = 0; i < bins.length; ++i) {
+            double angle = 2 * Math.PI * bins[i] / n;
+            binCos[i] = Math.cos(angle);
+            binSin[i] = Math.sin(angle);
+        }
+    }
+
+    // Bins 0, 1, ..., num - 1
+    public PrunedDFT(int n, int num) {
+        this(n, range(num));
+    }
+
+    private static int[] range(int num) {
+        int[] result = new int[num];
+        for (int i = 0; i < num; ++i)
+            result[i] = i;
+        return result;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public boolean usesGoertzel() {
+        return goertzel;
+    }
+
+    // Transform real/imag[offset, offset + n), outReal/outImag[i] is the value of bins[i]
+    public void forward(float[] real, float[] imag, int offset,
+                        float[] outReal, float[] outImag) {
+        if (offset < 0 || real.length < offset + n || imag.length < offset + n)
+            throw new IllegalArgumentException("Input shorter than transform");
+        if (outReal.length < bins.length || outImag.length < bins.length)
+            throw new IllegalArgumentException("Output shorter than bins");
+        if (goertzel) {
+            // Two bins per pass, so that the independent recursions can overlap
+            int i = 0;
+            for (; i + 1 < bins.length; i += 2) {
+                double coeffA = 2 * binCos[i], coeffB = 2 * binCos[i + 1];
+                double a1r = 0, a2r = 0, a1i = 0, a2i = 0;
+                double b1r = 0, b2r = 0, b1i = 0, b2i = 0;
+                for (int j = offset, end = offset + n; j < end; ++j) {
+                    float xr = real[j], xi = imag[j];
+                    double a0r = xr + coeffA * a1r - a2r;
+                    double a0i = xi + coeffA * a1i - a2i;
+                    double b0r = xr + coeffB * b1r - b2r;
+                    double b0i = xi + coeffB * b1i - b2i;
+                    a2r = a1r;
+                    a1r = a0r;
+                    a2i = a1i;
+                    a1i = a0i;
+                    b2r = b1r;
+                    b1r = b0r;
+                    b2i = b1i;
+                    b1i = b0i;
+                }
+                finish(i, a1r, a1i, a2r, a2i, outReal, outImag);
+                finish(i + 1, b1r, b1i, b2r, b2i, outReal, outImag);
+            }
+            if (i < bins.length) {
+                double coeff = 2 * binCos[i];
+                double s1r = 0, s2r = 0, s1i = 0, s2i = 0;
+                for (int j = offset, end = offset + n; j < end; ++j) {
+                    double s0r = real[j] + coeff * s1r - s2r;
+                    double s0i = imag[j] + coeff * s1i - s2i;
+                    s2r = s1r;
+                    s1r = s0r;
+                    s2i = s1i;
+                    s1i = s0i;
+                }
+                finish(i, s1r, s1i, s2r, s2i, outReal, outImag);
+            }
+        } else {
+            float[][] work = workspace.get();
+            float[] tempReal = work[0], tempImag = work[1];
+            System.arraycopy(real, offset, tempReal, 0, n);
+            System.arraycopy(imag, offset, tempImag, 0, n);
+            plan.transform(tempReal, tempImag);
+            for (int i = 0; i < bins.length; ++i) {
+                outReal[i] = tempReal[bins[i]];
+                outImag[i] = tempImag[bins[i]];
+            }
+        }
+    }
+
+    // Inverse transform of a spectrum that is zero except at the bins, inReal/inImag[i] is
+    // the value of bins[i] and the result is written to real/imag[offset, offset + n)
+    public void inverse(float[] inReal, float[] inImag,
+                        float[] real, float[] imag, int offset) {
+        if (offset < 0 || real.length < offset + n || imag.length < offset + n)
+            throw new IllegalArgumentException("Output shorter than transform");
+        if (inReal.length < bins.length || inImag.length < bins.length)
+            throw new IllegalArgumentException("Input shorter than bins");
+        if (goertzel) {
+            // Every linear combination of cos(w t) and sin(w t) satisfies
+            // y[t] = 2 cos(w) y[t - 1] - y[t - 2], so each bin costs one multiply per part
+            Arrays.fill(real, offset, offset + n, 0);
+            Arrays.fill(imag, offset, offset + n, 0);
+            double scale = 1.0 / n;
+            for (int i = 0; i < bins.length; ++i) {
+                double xr = inReal[i] * scale, xi = inImag[i] * scale;
+                if (xr == 0 && xi == 0)
+                    continue;
+                double coeff = 2 * binCos[i];
+                double y2r = xr, y2i = xi;
+                double y1r = xr * binCos[i] - xi * binSin[i];
+                double y1i = xr * binSin[i] + xi * binCos[i];
+                real[offset] += (float) y2r;
+                imag[offset] += (float) y2i;
+                if (n == 1)
+                    continue;
+                real[offset + 1] += (float) y1r;
+                imag[offset + 1] += (float) y1i;
+                for (int j = offset + 2, end = offset + n; j < end; ++j) {
+                    double y0r = coeff * y1r - y2r;
+                    double y0i = coeff * y1i - y2i;
+                    real[j] += (float) y0r;
+                    imag[j] += (float) y0i;
+                    y2r = y1r;
+                    y1r = y0r;
+                    y2i = y1i;
+                    y1i = y0i;
+                }
+            }
+        } else {
+            float[][] work = workspace.get();
+            float[] tempReal = work[0], tempImag = work[1];
+            Arrays.fill(tempReal, 0);
+            Arrays.fill(tempImag, 0);
+            for (int i = 0; i < bins.length; ++i) {
+                tempReal[bins[i]] += inReal[i];
+                tempImag[bins[i]] += inImag[i];
+            }
+            plan.inverse(tempReal, tempImag);
+            System.arraycopy(tempReal, 0, real, offset, n);
+            System.arraycopy(tempImag, 0, imag, offset, n);
+        }
+    }
+
+    // X = e^(i w) s[n - 1] - s[n - 2]
+    private void finish(int i, double s1r, double s1i, double s2r, double s2i,
+                        float[] outReal, float[] outImag) {
+        outReal[i] = (float) (binCos[i] * s1r - binSin[i] * s1i - s2r);
+        outImag[i] = (float) (binCos[i] * s1i + binSin[i] * s1r - s2i);
+    }
+}
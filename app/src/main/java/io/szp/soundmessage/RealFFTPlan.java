@@ -0,0 +1,106 @@
+package io.szp.soundmessage;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// Transform of n real samples through an n / 2 point complex FFT. Only the
+// n / 2 + 1 non-negative frequencies are stored, the rest follow from Hermitian symmetry.
+public class RealFFTPlan {
+    private static final ConcurrentHashMap<Integer, RealFFTPlan> plans = new ConcurrentHashMap<>();
+
+    private final int n, half;
+    private final FFTPlan halfPlan;
+    private final float[] cosTable, sinTable;
+
+    private final ThreadLocal<float[][]> workspace = new ThreadLocal<float[][]>() {
+        @Override
+        protected float[][] initialValue() {
+            return new float[][] { new float[half], new float[half] };
+        }
+    };
+
+    private RealFFTPlan(int n) {
+        this.n = n;
+        half = n / 2;
+        halfPlan = FFTPlan.get(half);
+        cosTable = new float[half];
+        sinTable = new float[half];
+        for (int i = 0; i < half; ++i) {
+            double angle = 2 * Math.PI * i / n;
+            cosTable[i] = (float) Math.cos(angle);
+            sinTable[i] = (float) Math.sin(angle);
+        }
+    }
+
+    public static RealFFTPlan get(int n) {
+        if (n < 2 || n % 2 != 0)
+            throw new IllegalArgumentException("Length is not a positive even number");
+        RealFFTPlan plan = plans.get(n);
+        if (plan == null) {
+            RealFFTPlan newPlan = new RealFFTPlan(n);
+            plan = plans.putIfAbsent(n, newPlan);
+            if (plan == null)
+                plan = newPlan;
+        }
+        return plan;
+    }
+
+    public int size() {
+        return n;
+    }
+
+    public int spectrumSize() {
+        return half + 1;
+    }
+
+    // input[0, n) to real/imag[0, n / 2 + 1)
+    public void forward(float[] input, float[] real, float[] imag) {
+        if (input.length < n || real.length < half + 1 || imag.length < half + 1)
+            throw new IllegalArgumentException("Buffer shorter than plan");
+        // Pack even samples as real part and odd samples as imaginary part
+        for (int i = 0; i < half; ++i) {
+            real[i] = input[2 * i];
+            imag[i] = input[2 * i + 1];
+        }
+        halfPlan.transform(real, imag);
+        // Split into the transforms of the even and odd samples and combine:
+        // X[k] = E[k] + W^k O[k], X[n/2 - k] = conj(E[k] - W^k O[k])
+        float z0 = real[0], z1 = imag[0];
+        real[0] = z0 + z1;
+        imag[0] = 0;
+        real[half] = z0 - z1;
+        imag[half] = 0;
+        for (int k = 1, j = half - 1; k <= j; ++k, --j) {
+            float ar = real[k], ai = imag[k], br = real[j], bi = imag[j];
+            float er = 0.5f * (ar + br), ei = 0.5f * (ai - bi);
+            float or = 0.5f * (ai + bi), oi = -0.5f * (ar - br);
+            float c = cosTable[k], s = sinTable[k];
+            float tr = c * or + s * oi, ti = c * oi - s * or;
+            real[k] = er + tr;
+            imag[k] = ei + ti;
+            real[j] = er - tr;
+            imag[j] = ti - ei;
+        }
+    }
+
+    // real/imag[0, n / 2 + 1) to output[0, n), the spectrum is left untouched
+    public void inverse(float[] real, float[] imag, float[] output) {
+        if (output.length < n || real.length < half + 1 || imag.length < half + 1)
+            throw new IllegalArgumentException("Buffer shorter than plan");
+        float[][] work = workspace.get();
+        float[] zr = work[0], zi = work[1];
+        for (int k = 0; k < half; ++k) {
+            float ar = real[k], ai = imag[k], br = real[half - k], bi = imag[half - k];
+            float er = 0.5f * (ar + br), ei = 0.5f * (ai - bi);
+            float dr = 0.5f * (ar - br), di = 0.5f * (ai + bi);
+            float c = cosTable[k], s = sinTable[k];
+            float or = c * dr - s * di, oi = c * di + s * dr;
+            zr[k] = er - oi;
+            zi[k] = ei + or;
+        }
+        halfPlan.inverse(zr, zi);
+        for (int i = 0; i < half; ++i) {
+            output[2 * i] = zr[i];
+            output[2 * i + 1] = zi[i];
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package io.szp.soundmessage;
+
+// Message from synchronization to demodulation: one OFDM symbol of a packet, or a marker
+// closing the packet. Symbol messages are pooled and returned once demodulated.
+public class ReceivedSymbol {
+    // realSymbolLen samples, null for a marker
+    public final float[] samples;
+    public long packet;
+    // Index of the symbol in the packet
+    public int index;
+    // Absolute stream position of samples[0], or of the first symbol for a marker
+    public long position;
+    // Marker only, the number of data symbols in the packet or -1 if it was dropped
+    public int symbolNum;
+
+    public ReceivedSymbol(int realSymbolLen) {
+        samples = new float[realSymbolLen];
+    }
+
+    private ReceivedSymbol(long packet, long position, int symbolNum) {
+        samples = null;
+        this.packet = packet;
+        this.position = position;
+        this.symbolNum = symbolNum;
+    }
+
+    public static ReceivedSymbol marker(long packet, long position, int symbolNum) {
+        return new ReceivedSymbol(packet, position, symbolNum);
+    }
+
+    public boolean isMarker() {
+        return samples == null;
+    }
+}
@@ -0,0 +1,16 @@
+package io.szp.soundmessage;
+
+// Callbacks of the receiver stages, called on the thread of the stage
+public interface ReceiverListener {
+    void log(LogLevel level, String text);
+
+    default void onWindow(float[] window) {}
+
+    // Correlations at [offset, offset + length) of cor, only valid during the call
+    default void onStartCorrelation(float[] cor, int offset, int length) {}
+
+    default void onEndCorrelation(float[] cor, int offset, int length) {}
+
+    // Text is null for a corrupted packet
+    default void onPacket(long position, String text) {}
+}
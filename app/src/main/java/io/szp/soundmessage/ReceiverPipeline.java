@@ -0,0 +1,151 @@
+package io.szp.soundmessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Receiver stages on their own threads: synchronization reads the captured samples,
+// demodulation and decoding follow through queues. Synchronization never waits on the later
+// stages, so it keeps up with the stream while symbols are demodulated.
+public class ReceiverPipeline {
+    // Symbols in flight between synchronization and demodulation, a correlator block of
+    // symbols arrives at once when a packet starts
+    private static final int SYMBOL_BUFFER_NUM = 32;
+    // Markers of packets that can queue up besides the symbols, every start that finds no free
+    // symbol adds one while demodulation is stalled
+    private static final int MARKER_NUM = 8;
+    private static final int DECODE_QUEUE_SIZE = 4;
+    private static final long INPUT_WAIT_NANOS = 100000000;
+    // How long stopping waits for each stage to finish what it is doing
+    private static final long STOP_WAIT_MILLIS = 1000;
+
+    private final ModemConfig config;
+    private final ReceiverListener listener;
+    private final FloatRingBuffer input;
+    private final int windowLen;
+    private final BlockingQueue<ReceivedSymbol> freeSymbols;
+    // When it is full the synchronizer drops the packet
+    private final BlockingQueue<ReceivedSymbol> demodulateQueue;
+    private final BlockingQueue<DemodulatedPacket> decodeQueue;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private Thread[] threads;
+
+    public ReceiverPipeline(ModemConfig config, ReceiverListener listener,
+                            FloatRingBuffer input, int windowLen) {
+        this.config = config;
+        this.listener = listener;
+        this.input = input;
+        this.windowLen = windowLen;
+        freeSymbols = new ArrayBlockingQueue<>(SYMBOL_BUFFER_NUM);
+        for (int i = 0; i < SYMBOL_BUFFER_NUM; ++i)
+            freeSymbols.add(new ReceivedSymbol(config.realSymbolLen));
+        demodulateQueue = new ArrayBlockingQueue<>(SYMBOL_BUFFER_NUM + MARKER_NUM);
+        decodeQueue = new ArrayBlockingQueue<>(DECODE_QUEUE_SIZE);
+    }
+
+    public void start() {
+        if (running.getAndSet(true))
+            throw new IllegalStateException("Pipeline already started");
+        threads = new Thread[] {
+                new Thread(new SyncRunnable(), "Sync Thread"),
+                new Thread(new DemodulateRunnable(), "Demodulate Thread"),
+                new Thread(new DecodeRunnable(), "Decode Thread")
+        };
+        // Synchronization has to keep up with the stream, the rest may lag behind
+        threads[0].setPriority(Thread.NORM_PRIORITY + 1);
+        for (Thread thread: threads)
+            thread.start();
+    }
+
+    // Returns once the stages have finished, so that a pipeline started after it never runs
+    // alongside them
+    public void stop() {
+        if (!running.getAndSet(false))
+            return;
+        for (Thread thread: threads)
+            thread.interrupt();
+        boolean interrupted = false;
+        for (Thread thread: threads) {
+            try {
+                thread.join(STOP_WAIT_MILLIS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            if (thread.isAlive())
+                listener.log(LogLevel.WARN, "W: " + thread.getName() + " did not stop in time");
+        }
+        threads = null;
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    private class SyncRunnable implements Runnable {
+        @Override
+        public void run() {
+            PacketSynchronizer synchronizer = new PacketSynchronizer(config, listener,
+                    freeSymbols, demodulateQueue);
+            float[] window = new float[windowLen];
+            long overrunSamples = input.overrunSamples();
+            while (running.get()) {
+                if (!input.awaitAvailable(windowLen, INPUT_WAIT_NANOS))
+                    continue;
+                input.read(window, 0, windowLen);
+                long newOverrunSamples = input.overrunSamples();
+                if (newOverrunSamples != overrunSamples) {
+                    // The stream has a gap, a packet across it cannot be decoded
+                    listener.log(LogLevel.WARN, String.format(
+                            "W: capture overrun, dropped %d samples (%d overruns in total)",
+                            newOverrunSamples - overrunSamples, input.overrunNum()));
+                    overrunSamples = newOverrunSamples;
+                    synchronizer.dropPacket();
+                }
+                synchronizer.process(window, 0, windowLen);
+                listener.onWindow(window);
+            }
+        }
+    }
+
+    private class DemodulateRunnable implements Runnable {
+        @Override
+        public void run() {
+            // Symbols are taken as they arrive, so no run long enough to extract in parallel
+            // builds up and the demodulator gets no pool
+            OFDMDemodulator demodulator = new OFDMDemodulator(config, listener);
+            List<ReceivedSymbol> symbols = new ArrayList<>();
+            List<DemodulatedPacket> results = new ArrayList<>();
+            try {
+                while (running.get()) {
+                    // Everything that has queued up is demodulated together
+                    symbols.add(demodulateQueue.take());
+                    demodulateQueue.drainTo(symbols);
+                    demodulator.demodulate(symbols, results);
+                    for (ReceivedSymbol symbol: symbols) {
+                        if (!symbol.isMarker())
+                            freeSymbols.offer(symbol);
+                    }
+                    symbols.clear();
+                    for (DemodulatedPacket result: results)
+                        decodeQueue.put(result);
+                    results.clear();
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }
+    }
+
+    private class DecodeRunnable implements Runnable {
+        @Override
+        public void run() {
+            PayloadDecoder decoder = new PayloadDecoder(config, listener);
+            try {
+                while (running.get())
+                    decoder.decode(decodeQueue.take());
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }
+    }
+}
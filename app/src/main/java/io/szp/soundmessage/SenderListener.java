@@ -0,0 +1,9 @@
+package io.szp.soundmessage;
+
+// Callbacks of the sender, called on the sender thread
+public interface SenderListener {
+    void log(LogLevel level, String text);
+
+    // A packet started playing latencyNanos after it was queued, queueDepth packets are left
+    default void onPlayout(long latencyNanos, int queueDepth) {}
+}
@@ -0,0 +1,221 @@
+package io.szp.soundmessage;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sender thread playing the queued packets. The thread lives as long as the pipeline, and its
+// AudioTrack is kept playing between packets until it has been idle for the idle timeout, so
+// a packet sent soon after another does not wait for a new track.
+public class SenderPipeline {
+    // Packets waiting to be played, more are rejected
+    private static final int SEND_QUEUE_SIZE = 16;
+    // Samples synthesized and written to the track at a time
+    private static final int SEND_CHUNK_LEN = 2048;
+    private static final int SHORT_BYTES = 2;
+    private static final int FLOAT_BYTES = 4;
+    // How long stopping waits for the sender thread, which stops after the chunk being written
+    private static final long STOP_WAIT_MILLIS = 1000;
+
+    private final SenderListener listener;
+    private final int sampleRate;
+    // Bytes of track buffer for 16-bit samples
+    private final int bufferSize;
+    private final BlockingQueue<Packet> queue = new ArrayBlockingQueue<>(SEND_QUEUE_SIZE);
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private volatile long idleTimeoutMillis;
+    private volatile long lastLatencyNanos;
+    private final AtomicLong latencySumNanos = new AtomicLong();
+    private final AtomicLong playedNum = new AtomicLong();
+    private Thread thread;
+
+    private static class Packet {
+        final OFDMModulator modulator;
+        final long queuedNanos;
+
+        Packet(OFDMModulator modulator, long queuedNanos) {
+            this.modulator = modulator;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+
+    public SenderPipeline(SenderListener listener, int sampleRate, int bufferSize) {
+        this.listener = listener;
+        this.sampleRate = sampleRate;
+        this.bufferSize = bufferSize;
+    }
+
+    public void start() {
+        if (running.getAndSet(true))
+            throw new IllegalStateException("Pipeline already started");
+        thread = new Thread(new SenderRunnable(), "Sender Thread");
+        thread.start();
+    }
+
+    // Packets not played yet are dropped. Returns once the thread has released its track.
+    public void stop() {
+        if (!running.getAndSet(false))
+            return;
+        thread.interrupt();
+        try {
+            thread.join(STOP_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive())
+            listener.log(LogLevel.WARN, "W: sender thread did not stop in time");
+        thread = null;
+        queue.clear();
+    }
+
+    // How long the track is kept after the last packet, 0 to release it right away
+    public void setIdleTimeout(long millis) {
+        idleTimeoutMillis = Math.max(0, millis);
+    }
+
+    // Queue a packet whose data has begun, returns false if the queue is full
+    public boolean send(OFDMModulator modulator) {
+        return queue.offer(new Packet(modulator, System.nanoTime()));
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    // Time from queueing a packet to its first samples reaching the track
+    public long lastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    public long meanLatencyNanos() {
+        long num = playedNum.get();
+        return num == 0 ? 0 : latencySumNanos.get() / num;
+    }
+
+    private class SenderRunnable implements Runnable {
+        private AudioTrack sender;
+        private boolean senderFloat;
+        private final float[] chunk = new float[SEND_CHUNK_LEN];
+        // Only for a 16-bit track
+        private final short[] data = new short[SEND_CHUNK_LEN];
+
+        @Override
+        public void run() {
+            try {
+                while (running.get()) {
+                    Packet packet;
+                    if (sender == null) {
+                        packet = queue.take();
+                    } else {
+                        packet = queue.poll(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+                        if (packet == null) {
+                            listener.log(LogLevel.DEBUG, "D: sender idle, track released");
+                            release();
+                            continue;
+                        }
+                    }
+                    play(packet);
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            } finally {
+                release();
+            }
+        }
+
+        private void play(Packet packet) {
+            if (sender == null)
+                createTrack();
+            OFDMModulator modulator = packet.modulator;
+            boolean first = true;
+            int count;
+            // A packet being played is cut off when the pipeline stops
+            while (running.get() && (count = modulator.read(chunk, 0, SEND_CHUNK_LEN)) > 0) {
+                if (senderFloat) {
+                    for (int i = 0; i < count; ++i)
+                        chunk[i] *= OFDMModulator.OUTPUT_GAIN;
+                } else {
+                    OFDMModulator.toPCM16(chunk, 0, data, 0, count);
+                }
+                int write = 0;
+                while (write != count) {
+                    int result = senderFloat ?
+                            sender.write(chunk, write, count - write, AudioTrack.WRITE_BLOCKING) :
+                            sender.write(data, write, count - write);
+                    if (result < 0)
+                        throw new RuntimeException("Error when writing audio: " +
+                                getBufferWriteFailureReason(result) + ")");
+                    write += result;
+                }
+                if (first) {
+                    first = false;
+                    long latency = System.nanoTime() - packet.queuedNanos;
+                    lastLatencyNanos = latency;
+                    latencySumNanos.addAndGet(latency);
+                    playedNum.incrementAndGet();
+                    int depth = queue.size();
+                    listener.log(LogLevel.INFO, String.format(
+                            "I: playout latency: %.1f ms (mean %.1f ms), queue depth: %d",
+                            latency / 1e6, meanLatencyNanos() / 1e6, depth));
+                    listener.onPlayout(latency, depth);
+                }
+            }
+        }
+
+        // Float samples need no conversion, a 16-bit track is used where they are not supported
+        private void createTrack() {
+            sender = null;
+            senderFloat = false;
+            try {
+                sender = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+                        AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_FLOAT,
+                        bufferSize / SHORT_BYTES * FLOAT_BYTES, AudioTrack.MODE_STREAM);
+                if (sender.getState() == AudioTrack.STATE_INITIALIZED) {
+                    senderFloat = true;
+                } else {
+                    sender.release();
+                    sender = null;
+                }
+            } catch (IllegalArgumentException e) {
+                sender = null;
+            }
+            if (sender == null)
+                sender = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+                        AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                        bufferSize, AudioTrack.MODE_STREAM);
+            listener.log(LogLevel.INFO, senderFloat ? "I: float playback" : "I: 16-bit playback");
+            sender.play();
+        }
+
+        private void release() {
+            if (sender != null) {
+                // Stopping a streaming track plays out what has been written
+                sender.stop();
+                sender.release();
+                sender = null;
+            }
+        }
+
+        private String getBufferWriteFailureReason(int errorCode) {
+            switch (errorCode) {
+                case AudioRecord.ERROR_INVALID_OPERATION:
+                    return "ERROR_INVALID_OPERATION";
+                case AudioRecord.ERROR_BAD_VALUE:
+                    return "ERROR_BAD_VALUE";
+                case AudioRecord.ERROR_DEAD_OBJECT:
+                    return "ERROR_DEAD_OBJECT";
+                case AudioRecord.ERROR:
+                    return "ERROR";
+                default:
+                    return "Unknown (" + errorCode + ")";
+            }
+        }
+    }
+}
@@ -46,6 +46,7 @@ public class SettingsActivity extends AppCompatActivity {
         private EditTextPreference pilotSubcarrierNumPreference;
         private EditTextPreference symbolLenPreference;
         private EditTextPreference cyclicPrefixFactorPreference;
+        private EditTextPreference decimationFactorPreference;
 
         private EditTextPreference sampleFreqPreference;
         private EditTextPreference carrierFreqPreference;
@@ -57,8 +58,12 @@ public class SettingsActivity extends AppCompatActivity {
         private EditTextPreference startEndThresholdPreference;
         private EditTextPreference lagVarianceLimitPreference;
         private EditTextPreference symbolNumLimitPreference;
+        private EditTextPreference squelchLevelPreference;
+        private EditTextPreference squelchHysteresisPreference;
+        private SwitchPreferenceCompat headerTerminationPreference;
 
         private EditTextPreference spaceFactorPreference;
+        private EditTextPreference senderIdleTimeoutPreference;
 
         @SuppressWarnings({"LambdaCanBeReplacedWithAnonymous", "CodeBlock2Expr"})
         @Override
@@ -82,6 +87,7 @@ public class SettingsActivity extends AppCompatActivity {
             symbolLenPreference = findPreference(getString(R.string.symbol_len_key));
             cyclicPrefixFactorPreference = findPreference(
                     getString(R.string.cyclic_prefix_factor_key));
+            decimationFactorPreference = findPreference(getString(R.string.decimation_factor_key));
 
             sampleFreqPreference = findPreference(getString(R.string.sample_freq_key));
             carrierFreqPreference = findPreference(getString(R.string.carrier_freq_key));
@@ -94,8 +100,15 @@ public class SettingsActivity extends AppCompatActivity {
                     getString(R.string.start_end_threshold_key));
             lagVarianceLimitPreference = findPreference(getString(R.string.lag_stdev_limit_key));
             symbolNumLimitPreference = findPreference(getString(R.string.symbol_num_limit_key));
+            squelchLevelPreference = findPreference(getString(R.string.squelch_level_key));
+            squelchHysteresisPreference = findPreference(
+                    getString(R.string.squelch_hysteresis_key));
+            headerTerminationPreference = findPreference(
+                    getString(R.string.header_termination_enabled_key));
 
             spaceFactorPreference = findPreference(getString(R.string.space_factor_key));
+            senderIdleTimeoutPreference = findPreference(
+                    getString(R.string.sender_idle_timeout_key));
 
             boolean receiverEnabled = preferences.getBoolean(
                     getString(R.string.receiver_enabled_key), true);
@@ -107,6 +120,7 @@ public class SettingsActivity extends AppCompatActivity {
             pilotSubcarrierNumPreference.setEnabled(!receiverEnabled);
             symbolLenPreference.setEnabled(!receiverEnabled);
             cyclicPrefixFactorPreference.setEnabled(!receiverEnabled);
+            decimationFactorPreference.setEnabled(!receiverEnabled);
             sampleFreqPreference.setEnabled(!receiverEnabled);
             carrierFreqPreference.setEnabled(!receiverEnabled);
             preambleLowFreqPreference.setEnabled(!receiverEnabled);
@@ -116,6 +130,9 @@ public class SettingsActivity extends AppCompatActivity {
             startEndThresholdPreference.setEnabled(!receiverEnabled);
             lagVarianceLimitPreference.setEnabled(!receiverEnabled);
             symbolNumLimitPreference.setEnabled(!receiverEnabled);
+            squelchLevelPreference.setEnabled(!receiverEnabled);
+            squelchHysteresisPreference.setEnabled(!receiverEnabled);
+            headerTerminationPreference.setEnabled(!receiverEnabled);
 
             subcarrierNumPreference.setOnBindEditTextListener((EditText editText) -> {
                 editText.setInputType(InputType.TYPE_CLASS_NUMBER);
@@ -130,6 +147,9 @@ public class SettingsActivity extends AppCompatActivity {
                 editText.setInputType(InputType.TYPE_CLASS_NUMBER |
                         InputType.TYPE_NUMBER_FLAG_DECIMAL);
             });
+            decimationFactorPreference.setOnBindEditTextListener((EditText editText) -> {
+                editText.setInputType(InputType.TYPE_CLASS_NUMBER);
+            });
             sampleFreqPreference.setOnBindEditTextListener((EditText editText) -> {
                 editText.setInputType(InputType.TYPE_CLASS_NUMBER |
                         InputType.TYPE_NUMBER_FLAG_DECIMAL);
@@ -163,10 +183,22 @@ public class SettingsActivity extends AppCompatActivity {
             symbolNumLimitPreference.setOnBindEditTextListener((EditText editText) -> {
                 editText.setInputType(InputType.TYPE_CLASS_NUMBER);
             });
+            squelchLevelPreference.setOnBindEditTextListener((EditText editText) -> {
+                editText.setInputType(InputType.TYPE_CLASS_NUMBER |
+                        InputType.TYPE_NUMBER_FLAG_SIGNED | InputType.TYPE_NUMBER_FLAG_DECIMAL);
+            });
+            squelchHysteresisPreference.setOnBindEditTextListener((EditText editText) -> {
+                editText.setInputType(InputType.TYPE_CLASS_NUMBER |
+                        InputType.TYPE_NUMBER_FLAG_DECIMAL);
+            });
             spaceFactorPreference.setOnBindEditTextListener((EditText editText) -> {
                 editText.setInputType(InputType.TYPE_CLASS_NUMBER |
                         InputType.TYPE_NUMBER_FLAG_DECIMAL);
             });
+            senderIdleTimeoutPreference.setOnBindEditTextListener((EditText editText) -> {
+                editText.setInputType(InputType.TYPE_CLASS_NUMBER |
+                        InputType.TYPE_NUMBER_FLAG_DECIMAL);
+            });
         }
 
         @Override
@@ -193,6 +225,7 @@ public class SettingsActivity extends AppCompatActivity {
                 pilotSubcarrierNumPreference.setEnabled(!enabled);
                 symbolLenPreference.setEnabled(!enabled);
                 cyclicPrefixFactorPreference.setEnabled(!enabled);
+                decimationFactorPreference.setEnabled(!enabled);
                 sampleFreqPreference.setEnabled(!enabled);
                 carrierFreqPreference.setEnabled(!enabled);
                 preambleLowFreqPreference.setEnabled(!enabled);
@@ -202,6 +235,9 @@ public class SettingsActivity extends AppCompatActivity {
                 startEndThresholdPreference.setEnabled(!enabled);
                 lagVarianceLimitPreference.setEnabled(!enabled);
                 symbolNumLimitPreference.setEnabled(!enabled);
+                squelchLevelPreference.setEnabled(!enabled);
+                squelchHysteresisPreference.setEnabled(!enabled);
+                headerTerminationPreference.setEnabled(!enabled);
             } else if (key.equals(getString(R.string.subcarrier_num_key))) {
                 subcarrierNumPreference.setText(preferences.getString(key, "6"));
             } else if (key.equals(getString(R.string.pilot_subcarrier_num_key))) {
@@ -210,6 +246,8 @@ public class SettingsActivity extends AppCompatActivity {
                 symbolLenPreference.setText(preferences.getString(key, "2048"));
             } else if (key.equals(getString(R.string.cyclic_prefix_factor_key))) {
                 cyclicPrefixFactorPreference.setText(preferences.getString(key, "0.1"));
+            } else if (key.equals(getString(R.string.decimation_factor_key))) {
+                decimationFactorPreference.setText(preferences.getString(key, "1"));
             } else if (key.equals(getString(R.string.sample_freq_key))) {
                 sampleFreqPreference.setText(preferences.getString(key, "44100"));
             } else if (key.equals(getString(R.string.carrier_freq_key))) {
@@ -228,8 +266,14 @@ public class SettingsActivity extends AppCompatActivity {
                 lagVarianceLimitPreference.setText(preferences.getString(key, "10"));
             } else if (key.equals(getString(R.string.symbol_num_limit_key))) {
                 symbolNumLimitPreference.setText(preferences.getString(key, "100"));
+            } else if (key.equals(getString(R.string.squelch_level_key))) {
+                squelchLevelPreference.setText(preferences.getString(key, "-70"));
+            } else if (key.equals(getString(R.string.squelch_hysteresis_key))) {
+                squelchHysteresisPreference.setText(preferences.getString(key, "6"));
             } else if (key.equals(getString(R.string.space_factor_key))) {
                 spaceFactorPreference.setText(preferences.getString(key, "1"));
+            } else if (key.equals(getString(R.string.sender_idle_timeout_key))) {
+                senderIdleTimeoutPreference.setText(preferences.getString(key, "5"));
             }
         }
     }
@@ -1,11 +1,13 @@
 package io.szp.soundmessage;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.Deque;
 
 public class SignalProcessing {
     public static final int MAX_BYTE_NUM = 4096;
+    // Symbol number and byte number in front of the text
+    public static final int HEADER_BYTE_NUM = 8;
 
     public static final int[] FACTORS = new int[] { 2, 3, 5, 7 };
 
@@ -23,58 +25,91 @@ public class SignalProcessing {
         return value;
     }
 
-    public static void xcorr(float[] x, float[] y, Box<float[]> cor, Box<int []> lags) {
-        int m = Math.max(x.length, y.length), mxl = m - 1, m2 = 2 * m;
-        while (true) {
-            int r = m2;
-            for (int p: FACTORS) {
-                while (r > 1 && r % p == 0)
-                    r /= p;
-            }
-            if (r == 1)
-                break;
-            ++m2;
+    // Buffers for xcorr of inputs whose longer length is m, reusable across calls
+    public static class XcorrWorkspace {
+        private final int m;
+        private final RealFFTPlan plan;
+        private final float[] xPadded, yPadded, xReal, xImag, yReal, yImag;
+
+        public XcorrWorkspace(int m) {
+            if (m < 1)
+                throw new IllegalArgumentException("Non-positive length");
+            this.m = m;
+            int m2 = 2 * m;
+            // Even length, so that the real-input FFT can be used
+            while (!FFTPlan.isSmooth(m2))
+                m2 += 2;
+            plan = RealFFTPlan.get(m2);
+            int spectrumLen = plan.spectrumSize();
+            xPadded = new float[m2];
+            yPadded = new float[m2];
+            xReal = new float[spectrumLen];
+            xImag = new float[spectrumLen];
+            yReal = new float[spectrumLen];
+            yImag = new float[spectrumLen];
         }
-        float[] xReal = new float[m2], yReal = new float[m2];
-        float[] xImag = new float[m2], yImag = new float[m2];
-        System.arraycopy(x, 0, xReal, 0, x.length);
-        System.arraycopy(y, 0, yReal, 0, y.length);
-        FFT.fft(xReal, xImag);
-        FFT.fft(yReal, yImag);
-        for (int i = 0; i < m2; ++i) {
-            float temp = xImag[i] * yReal[i] - xReal[i] * yImag[i];
-            xReal[i] = xReal[i] * yReal[i] + xImag[i] * yImag[i];
-            xImag[i] = temp;
+
+        // cor[i] is at lag i - (m - 1)
+        public int corLength() {
+            return 2 * m - 1;
         }
-        FFT.ifft(xReal, xImag);
-        int length = 2 * mxl + 1;
+    }
+
+    public static void xcorr(float[] x, float[] y, Box<float[]> cor, Box<int []> lags) {
+        int m = Math.max(x.length, y.length), mxl = m - 1;
+        XcorrWorkspace workspace = new XcorrWorkspace(m);
+        int length = workspace.corLength();
         cor.value = new float[length];
         lags.value = new int[length];
-        System.arraycopy(xReal, m2 - mxl, cor.value, 0, mxl);
-        System.arraycopy(xReal, 0, cor.value, mxl, mxl + 1);
+        xcorr(x, y, cor.value, workspace);
         int begin = -mxl;
         for (int i = 0; i < length; ++i)
             lags.value[i] = begin + i;
     }
 
+    public static void xcorr(float[] x, float[] y, float[] cor, XcorrWorkspace workspace) {
+        int m = Math.max(x.length, y.length), mxl = m - 1;
+        if (m != workspace.m)
+            throw new IllegalArgumentException("Workspace for another length");
+        if (cor.length < workspace.corLength())
+            throw new IllegalArgumentException("Output shorter than lags");
+        RealFFTPlan plan = workspace.plan;
+        float[] xPadded = workspace.xPadded, yPadded = workspace.yPadded;
+        float[] xReal = workspace.xReal, xImag = workspace.xImag;
+        float[] yReal = workspace.yReal, yImag = workspace.yImag;
+        System.arraycopy(x, 0, xPadded, 0, x.length);
+        Arrays.fill(xPadded, x.length, xPadded.length, 0);
+        System.arraycopy(y, 0, yPadded, 0, y.length);
+        Arrays.fill(yPadded, y.length, yPadded.length, 0);
+        plan.forward(xPadded, xReal, xImag);
+        plan.forward(yPadded, yReal, yImag);
+        for (int i = 0; i < xReal.length; ++i) {
+            float temp = xImag[i] * yReal[i] - xReal[i] * yImag[i];
+            xReal[i] = xReal[i] * yReal[i] + xImag[i] * yImag[i];
+            xImag[i] = temp;
+        }
+        plan.inverse(xReal, xImag, xPadded);
+        System.arraycopy(xPadded, xPadded.length - mxl, cor, 0, mxl);
+        System.arraycopy(xPadded, 0, cor, mxl, mxl + 1);
+    }
+
     public static void max(float[] input, Box<Float> max, Box<Integer> index) {
+        int intIndex = argmax(input, 0, input.length);
+        max.value = input.length == 0 ? Float.NEGATIVE_INFINITY : input[intIndex];
+        index.value = intIndex;
+    }
+
+    // Index of the maximum of input[offset, offset + length), relative to offset
+    public static int argmax(float[] input, int offset, int length) {
         float floatMax = Float.NEGATIVE_INFINITY;
         int intIndex = 0;
-        for (int i = 0; i < input.length; ++i) {
-            if (input[i] > floatMax) {
-                floatMax = input[i];
+        for (int i = 0; i < length; ++i) {
+            if (input[offset + i] > floatMax) {
+                floatMax = input[offset + i];
                 intIndex = i;
             }
         }
-        max.value = floatMax;
-        index.value = intIndex;
-    }
-
-    public static float mean(Deque<Integer> input) {
-        float sum = 0;
-        for (Integer i: input)
-            sum += i;
-        return sum / input.size();
+        return intIndex;
     }
 
     public static float mean(float[] input) {
@@ -85,43 +120,115 @@ public class SignalProcessing {
     }
 
     public static float meanAbs(float[] input) {
-        float sum = 0;
-        for (float i: input)
-            sum += Math.abs(i);
-        return sum / input.length;
+        return meanAbs(input, 0, input.length);
     }
 
-    public static float stdev(Deque<Integer> input, float mean) {
+    public static float meanAbs(float[] input, int offset, int length) {
         float sum = 0;
-        for (Integer i: input) {
-            float diff = i - mean;
-            sum += diff * diff;
+        for (int i = offset; i < offset + length; ++i)
+            sum += Math.abs(input[i]);
+        return sum / length;
+    }
+
+    // Mean and population standard deviation of the last capacity values in constant time.
+    // The sums are kept exactly in longs, so they never drift
+    public static class RunningStats {
+        private final int[] values;
+        private int head, size;
+        private long sum, sumSquares;
+
+        public RunningStats(int capacity) {
+            if (capacity < 1)
+                throw new IllegalArgumentException("Non-positive capacity");
+            values = new int[capacity];
+        }
+
+        public int capacity() {
+            return values.length;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public boolean isFull() {
+            return size == values.length;
+        }
+
+        // The oldest value is dropped once full
+        public void add(int value) {
+            if (size == values.length) {
+                int old = values[head];
+                sum -= old;
+                sumSquares -= (long) old * old;
+            } else {
+                ++size;
+            }
+            values[head] = value;
+            sum += value;
+            sumSquares += (long) value * value;
+            head = head + 1 == values.length ? 0 : head + 1;
+        }
+
+        public float mean() {
+            return (float) sum / size;
+        }
+
+        public float stdev() {
+            // n^2 var = n sum(x^2) - sum(x)^2, exact in integers
+            double variance = (double) (size * sumSquares - sum * sum) / ((double) size * size);
+            return (float) Math.sqrt(variance);
+        }
+
+        public void clear() {
+            head = 0;
+            size = 0;
+            sum = 0;
+            sumSquares = 0;
         }
-        return (float) Math.sqrt(sum / input.size());
     }
 
     public interface PSK {
-        void modulate(int[] input, Box<float[]> real, Box<float[]> imag);
-        int[] demodulate(float[] real, float[] imag);
+        // input[offset, offset + length) to real/imag[outOffset, outOffset + length)
+        void modulate(int[] input, int offset, int length,
+                      float[] real, float[] imag, int outOffset);
+        // real/imag[offset, offset + length) to output[outOffset, outOffset + length)
+        void demodulate(float[] real, float[] imag, int offset, int length,
+                        int[] output, int outOffset);
+
+        default void modulate(int[] input, Box<float[]> real, Box<float[]> imag) {
+            real.value = new float[input.length];
+            imag.value = new float[input.length];
+            modulate(input, 0, input.length, real.value, imag.value, 0);
+        }
+
+        default int[] demodulate(float[] real, float[] imag) {
+            int[] result = new int[real.length];
+            demodulate(real, imag, 0, real.length, result, 0);
+            return result;
+        }
     }
 
     public static final PSK bpsk = new PSK() {
         @Override
-        public void modulate(int[] input, Box<float[]> real, Box<float[]> imag) {
-            real.value = new float[input.length];
-            imag.value = new float[input.length];
-            for (int i = 0; i < input.length; ++i) {
-                real.value[i] = input[i] == 0 ? 1 : -1;
+        public void modulate(int[] input, int offset, int length,
+                             float[] real, float[] imag, int outOffset) {
+            for (int i = 0; i < length; ++i) {
+                real[outOffset + i] = input[offset + i] == 0 ? 1 : -1;
+                imag[outOffset + i] = 0;
             }
         }
 
         @Override
-        public int[] demodulate(float[] real, float[] imag) {
-            int[] result = new int[real.length];
-            for (int i = 0; i < real.length; ++i) {
-                result[i] = real[i] >= 0 ? 0 : 1;
+        public void demodulate(float[] real, float[] imag, int offset, int length,
+                               int[] output, int outOffset) {
+            for (int i = 0; i < length; ++i) {
+                output[outOffset + i] = real[offset + i] >= 0 ? 0 : 1;
             }
-            return result;
         }
     };
 
@@ -135,25 +242,23 @@ public class SignalProcessing {
 
     public static final PSK qpsk = new PSK() {
         @Override
-        public void modulate(int[] input, Box<float[]> real, Box<float[]> imag) {
-            real.value = new float[input.length];
-            imag.value = new float[input.length];
-            for (int i = 0; i < input.length; ++i) {
-                float phase = QPSK_PHASES[input[i]];
-                real.value[i] = (float) Math.cos(phase);
-                imag.value[i] = (float) Math.sin(phase);
+        public void modulate(int[] input, int offset, int length,
+                             float[] real, float[] imag, int outOffset) {
+            for (int i = 0; i < length; ++i) {
+                float phase = QPSK_PHASES[input[offset + i]];
+                real[outOffset + i] = (float) Math.cos(phase);
+                imag[outOffset + i] = (float) Math.sin(phase);
             }
         }
 
         @Override
-        public int[] demodulate(float[] real, float[] imag) {
-            int[] result = new int[real.length];
-            for (int i = 0; i < real.length; ++i) {
-                int index = (int) Math.round((Math.atan2(imag[i], real[i]) +
+        public void demodulate(float[] real, float[] imag, int offset, int length,
+                               int[] output, int outOffset) {
+            for (int i = 0; i < length; ++i) {
+                int index = (int) Math.round((Math.atan2(imag[offset + i], real[offset + i]) +
                         Math.PI - Math.PI/4) / (Math.PI/2));
-                result[i] = QPSK_INDEX[index];
+                output[outOffset + i] = QPSK_INDEX[index];
             }
-            return result;
         }
     };
 
@@ -172,25 +277,23 @@ public class SignalProcessing {
 
     public static final PSK psk8 = new PSK() {
         @Override
-        public void modulate(int[] input, Box<float[]> real, Box<float[]> imag) {
-            real.value = new float[input.length];
-            imag.value = new float[input.length];
-            for (int i = 0; i < input.length; ++i) {
-                float phase = PSK8_PHASES[input[i]];
-                real.value[i] = (float) Math.cos(phase);
-                imag.value[i] = (float) Math.sin(phase);
+        public void modulate(int[] input, int offset, int length,
+                             float[] real, float[] imag, int outOffset) {
+            for (int i = 0; i < length; ++i) {
+                float phase = PSK8_PHASES[input[offset + i]];
+                real[outOffset + i] = (float) Math.cos(phase);
+                imag[outOffset + i] = (float) Math.sin(phase);
             }
         }
 
         @Override
-        public int[] demodulate(float[] real, float[] imag) {
-            int[] result = new int[real.length];
-            for (int i = 0; i < real.length; ++i) {
-                int index = (int) Math.round((Math.atan2(imag[i], real[i]) +
+        public void demodulate(float[] real, float[] imag, int offset, int length,
+                               int[] output, int outOffset) {
+            for (int i = 0; i < length; ++i) {
+                int index = (int) Math.round((Math.atan2(imag[offset + i], real[offset + i]) +
                         Math.PI) / (Math.PI/4));
-                result[i] = PSK8_INDEX[index];
+                output[outOffset + i] = PSK8_INDEX[index];
             }
-            return result;
         }
     };
 
@@ -235,6 +338,23 @@ public class SignalProcessing {
         return result;
     }
 
+    // Symbol number in the header at the front of data, which has at least
+    // HEADER_BYTE_NUM * 8 / n elements, -1 if it disagrees with the byte number
+    public static int decodeHeader(int[] data, int n, int subcarrierNum) {
+        long header = 0;
+        for (int i = 0; i * n < HEADER_BYTE_NUM * 8; ++i)
+            header |= (long) data[i] << (i * n);
+        int symbolNum = (int) header;
+        int byteNum = (int) (header >>> 32);
+        if (byteNum < 0 || byteNum > MAX_BYTE_NUM)
+            return -1;
+        int encodedNum = (int) Math.round(Math.ceil(
+                (double) (byteNum + HEADER_BYTE_NUM) * 8 / n));
+        if (symbolNum != (int) Math.round(Math.ceil((double) encodedNum / subcarrierNum)))
+            return -1;
+        return symbolNum;
+    }
+
     public static String decodeText(int[] data, int n, int subcarrierNum) {
         int symbolNum = data.length / subcarrierNum;
         if (data.length != symbolNum * subcarrierNum)
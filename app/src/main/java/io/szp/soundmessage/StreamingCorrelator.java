@@ -0,0 +1,115 @@
+package io.szp.soundmessage;
+
+// Overlap-save correlation of an unbounded stream against several templates of the same
+// length. Samples are written incrementally, and every hop samples a block of correlations
+// at absolute stream positions [blockPosition(), blockPosition() + hop) becomes ready.
+// The forward transform of a block is shared by all templates, and a template is only
+// correlated when its result is asked for.
+public class StreamingCorrelator {
+    private final MatchedFilter[] filters;
+    private final int templateLen, hop, blockLen;
+    private final float[] block;
+    private final float[] spectrumReal, spectrumImag;
+    private final float[][] cors;
+    private final boolean[] computed;
+    private boolean spectrumComputed;
+    private int filled;
+    private long position;
+
+    public StreamingCorrelator(float[][] templates, int hop) {
+        if (templates.length == 0 || hop < 1)
+            throw new IllegalArgumentException("Empty correlator");
+        templateLen = templates[0].length;
+        for (float[] template: templates) {
+            if (template.length != templateLen)
+                throw new IllegalArgumentException("Mismatched template lengths");
+        }
+        this.hop = hop;
+        blockLen = hop + templateLen - 1;
+        filters = new MatchedFilter[templates.length];
+        for (int i = 0; i < templates.length; ++i)
+            filters[i] = new MatchedFilter(templates[i], blockLen, hop);
+        block = new float[blockLen];
+        spectrumReal = new float[filters[0].spectrumSize()];
+        spectrumImag = new float[filters[0].spectrumSize()];
+        cors = new float[templates.length][hop];
+        computed = new boolean[templates.length];
+    }
+
+    public int hop() {
+        return hop;
+    }
+
+    // Samples of a block, the last correlation of a block needs all of them
+    public int blockLength() {
+        return blockLen;
+    }
+
+    // Absolute position of the next sample to be written
+    public long inputPosition() {
+        return position + filled;
+    }
+
+    // Absolute position of the first correlation (and the first sample) of the block
+    public long blockPosition() {
+        return position;
+    }
+
+    // Returns the number of samples consumed, which is less than length once a block is ready
+    public int write(float[] input, int offset, int length) {
+        int count = Math.min(length, blockLen - filled);
+        System.arraycopy(input, offset, block, filled, count);
+        filled += count;
+        return count;
+    }
+
+    public boolean blockReady() {
+        return filled == blockLen;
+    }
+
+    // Correlations of the ready block, cor[i] is at absolute position blockPosition() + i
+    public float[] correlation(int filter) {
+        if (!blockReady())
+            throw new IllegalStateException("Block is not ready");
+        if (!computed[filter]) {
+            if (!spectrumComputed) {
+                filters[0].spectrum(block, spectrumReal, spectrumImag);
+                spectrumComputed = true;
+            }
+            filters[filter].correlate(spectrumReal, spectrumImag, cors[filter]);
+            computed[filter] = true;
+        }
+        return cors[filter];
+    }
+
+    // Copy samples [from, from + count) that are still held in the block
+    public void copySamples(long from, float[] output, int offset, int count) {
+        if (from < position || from + count > position + filled)
+            throw new IllegalArgumentException("Samples no longer available");
+        System.arraycopy(block, (int) (from - position), output, offset, count);
+    }
+
+    public int availableSamples(long from) {
+        return (int) (position + filled - from);
+    }
+
+    // Drop the ready block, keeping the samples the next block still needs
+    public void advance() {
+        if (!blockReady())
+            throw new IllegalStateException("Block is not ready");
+        System.arraycopy(block, hop, block, 0, templateLen - 1);
+        filled = templateLen - 1;
+        position += hop;
+        spectrumComputed = false;
+        for (int i = 0; i < computed.length; ++i)
+            computed[i] = false;
+    }
+
+    public void reset() {
+        filled = 0;
+        position = 0;
+        spectrumComputed = false;
+        for (int i = 0; i < computed.length; ++i)
+            computed[i] = false;
+    }
+}
@@ -0,0 +1,93 @@
+package io.szp.soundmessage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// FFT against a naive DFT for radix-2, 7-smooth (mixed radix) and prime (Bluestein) sizes
+public class FFTTest {
+    private static final int[] SIZES = { 1, 2, 64, 1024, 60, 2205, 17, 1021 };
+    private static final int[] REAL_SIZES = { 2, 64, 60, 2048, 34, 2042 };
+    // Relative to the largest output, float precision over a few thousand points
+    private static final double TOLERANCE = 1e-5;
+
+    // sign -1 for the forward transform, +1 for the unscaled inverse
+    private static double[][] naiveDFT(float[] real, float[] imag, int sign) {
+        int n = real.length;
+        double[][] result = new double[2][n];
+        for (int k = 0; k < n; ++k) {
+            double sumReal = 0, sumImag = 0;
+            for (int t = 0; t < n; ++t) {
+                double angle = sign * 2 * Math.PI * ((long) k * t % n) / n;
+                double c = Math.cos(angle), s = Math.sin(angle);
+                sumReal += real[t] * c - imag[t] * s;
+                sumImag += real[t] * s + imag[t] * c;
+            }
+            result[0][k] = sumReal;
+            result[1][k] = sumImag;
+        }
+        return result;
+    }
+
+    private static float[] random(Random random, int n) {
+        float[] result = new float[n];
+        for (int i = 0; i < n; ++i)
+            result[i] = random.nextFloat() * 2 - 1;
+        return result;
+    }
+
+    private static void assertClose(String message, double[][] expected,
+                                    float[] real, float[] imag, int length) {
+        double scale = 1e-30, error = 0;
+        for (int k = 0; k < length; ++k) {
+            scale = Math.max(scale, Math.hypot(expected[0][k], expected[1][k]));
+            error = Math.max(error, Math.hypot(expected[0][k] - real[k],
+                    expected[1][k] - imag[k]));
+        }
+        assertTrue(message + ": relative error " + error / scale, error / scale < TOLERANCE);
+    }
+
+    @Test
+    public void fft_matchesNaiveDFT() {
+        Random random = new Random(1);
+        for (int n: SIZES) {
+            float[] real = random(random, n), imag = random(random, n);
+            double[][] expected = naiveDFT(real, imag, -1);
+            FFT.fft(real, imag);
+            assertClose("n = " + n, expected, real, imag, n);
+        }
+    }
+
+    @Test
+    public void ifft_matchesNaiveDFT() {
+        Random random = new Random(2);
+        for (int n: SIZES) {
+            float[] real = random(random, n), imag = random(random, n);
+            double[][] expected = naiveDFT(real, imag, 1);
+            for (int k = 0; k < n; ++k) {
+                expected[0][k] /= n;
+                expected[1][k] /= n;
+            }
+            FFT.ifft(real, imag);
+            assertClose("n = " + n, expected, real, imag, n);
+        }
+    }
+
+    @Test
+    public void rfft_matchesNaiveDFT() {
+        Random random = new Random(3);
+        for (int n: REAL_SIZES) {
+            float[] input = random(random, n);
+            double[][] expected = naiveDFT(input, new float[n], -1);
+            float[] real = new float[n / 2 + 1], imag = new float[n / 2 + 1];
+            FFT.rfft(input, real, imag);
+            assertClose("n = " + n, expected, real, imag, n / 2 + 1);
+            float[] output = new float[n];
+            FFT.irfft(real, imag, output);
+            for (int i = 0; i < n; ++i)
+                assertEquals("n = " + n, input[i], output[i], 1e-5);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package io.szp.soundmessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// Modulation and demodulation round trips, at the sample rate and at a decimated baseband rate
+public class ModemTest {
+    private static final int[] DECIMATION_FACTORS = { 1, 4 };
+    private static final ReceiverListener QUIET = new ReceiverListener() {
+        @Override
+        public void log(LogLevel level, String text) {}
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ModemConfig config(int decimationFactor) {
+        ModemConfig config = new ModemConfig();
+        config.decimationFactor = decimationFactor;
+        return config.update();
+    }
+
+    @Test
+    public void demodulator_recoversModulatedData() {
+        for (int factor: DECIMATION_FACTORS) {
+            ModemConfig config = config(factor);
+            assertEquals(factor == 1, config.resampler == null);
+            int[] data = SignalProcessing.encodeText("round trip " + factor, config.bits,
+                    config.dataSubcarrierNum);
+            float[] sound = new OFDMModulator(config).modulate(data);
+            int symbolNum = data.length / config.dataSubcarrierNum;
+            // Data follows the leading silence and the start preambles
+            int dataOffset = Math.round(config.realSymbolLen * config.spaceFactor) +
+                    config.startPreambleNum * config.realSymbolLen;
+            OFDMDemodulator demodulator = new OFDMDemodulator(config, QUIET);
+            demodulator.begin(1, dataOffset);
+            for (int i = 0; i < symbolNum; ++i)
+                demodulator.add(sound, dataOffset + i * config.realSymbolLen, i);
+            assertArrayEquals("decimation " + factor, data, demodulator.finish(symbolNum));
+        }
+    }
+
+    @Test
+    public void offlineDecoder_decodesBatchEncoderOutput() throws Exception {
+        List<String> texts = Arrays.asList("hello world", "你好，声音传送门");
+        for (int factor: DECIMATION_FACTORS) {
+            ModemConfig config = config(factor);
+            File file = folder.newFile("decimation" + factor + ".wav");
+            new BatchEncoder(config, false).encode(texts, 1, file);
+            OfflineDecoder decoder = new OfflineDecoder(config, QUIET);
+            // On the calling thread, and with the subcarriers extracted in parallel
+            for (OfflineDecoder.Result result: Arrays.asList(decoder.decode(file),
+                    decoder.decode(Collections.singletonList(file), 4).get(0))) {
+                assertNull(result.error);
+                assertEquals("decimation " + factor, texts.size(), result.packets.size());
+                for (int i = 0; i < texts.size(); ++i)
+                    assertEquals(texts.get(i), result.packets.get(i).text);
+            }
+        }
+    }
+}
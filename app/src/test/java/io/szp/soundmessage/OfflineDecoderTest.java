@@ -0,0 +1,85 @@
+package io.szp.soundmessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+// Reading of the WAV and raw PCM formats, the files hold silence so no packets are found
+public class OfflineDecoderTest {
+    private static final ReceiverListener QUIET = new ReceiverListener() {
+        @Override
+        public void log(LogLevel level, String text) {}
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ModemConfig config = new ModemConfig().update();
+
+    private File write(String name, ByteBuffer bytes) throws IOException {
+        File file = folder.newFile(name);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(bytes.array(), 0, bytes.position());
+        }
+        return file;
+    }
+
+    // A WAV file with an odd-sized chunk between the format and the data
+    private ByteBuffer wav(int tag, int channelNum, int sampleFreq, int bits, int frameNum) {
+        int dataBytes = frameNum * channelNum * bits / 8;
+        ByteBuffer bytes = ByteBuffer.allocate(64 + dataBytes).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.put("RIFF".getBytes()).putInt(bytes.capacity() - 8).put("WAVE".getBytes());
+        bytes.put("fmt ".getBytes()).putInt(16);
+        bytes.putShort((short) tag).putShort((short) channelNum).putInt(sampleFreq);
+        bytes.putInt(sampleFreq * channelNum * bits / 8).putShort((short) (channelNum * bits / 8));
+        bytes.putShort((short) bits);
+        bytes.put("LIST".getBytes()).putInt(3).put(new byte[4]);
+        bytes.put("data".getBytes()).putInt(dataBytes).put(new byte[dataBytes]);
+        return bytes;
+    }
+
+    @Test
+    public void decode_readsWavFormats() throws IOException {
+        int sampleFreq = Math.round(config.sampleFreq);
+        OfflineDecoder decoder = new OfflineDecoder(config, QUIET);
+        File pcm = write("pcm.wav", wav(1, 2, sampleFreq, 16, 10000));
+        File floating = write("float.wav", wav(3, 1, sampleFreq, 32, 12345));
+        for (File file: new File[] { pcm, floating }) {
+            OfflineDecoder.Result result = decoder.decode(file);
+            assertNull(file.getName(), result.error);
+            assertEquals(file.getName(), config.sampleFreq, result.sampleFreq, 0);
+            assertTrue(file.getName(), result.packets.isEmpty());
+        }
+        assertEquals(10000, decoder.decode(pcm).sampleNum);
+        assertEquals(40000, decoder.decode(pcm).byteNum);
+        assertEquals(12345, decoder.decode(floating).sampleNum);
+    }
+
+    @Test
+    public void decode_readsRawPCM() throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(2 * 7777 + 1);
+        bytes.position(bytes.capacity());
+        OfflineDecoder.Result result = new OfflineDecoder(config, QUIET)
+                .decode(write("raw.pcm", bytes));
+        assertNull(result.error);
+        assertEquals(7777, result.sampleNum);
+    }
+
+    @Test
+    public void decode_reportsUnreadableFiles() throws IOException {
+        OfflineDecoder decoder = new OfflineDecoder(config, QUIET);
+        ByteBuffer text = ByteBuffer.wrap("not audio at all".getBytes());
+        text.position(text.capacity());
+        assertNotNull(decoder.decode(write("text.wav", text)).error);
+        assertNotNull(decoder.decode(write("24bit.wav", wav(1, 1, 44100, 24, 100))).error);
+        assertNotNull(decoder.decode(write("rate.wav", wav(1, 1, 8000, 16, 100))).error);
+    }
+}
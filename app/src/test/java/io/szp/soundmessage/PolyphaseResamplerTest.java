@@ -0,0 +1,60 @@
+package io.szp.soundmessage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// Decimation and interpolation of complex tones inside the passband of the resampler
+public class PolyphaseResamplerTest {
+    private static final int[] FACTORS = { 1, 2, 4, 8 };
+    // Passband ripple of the short windowed sinc
+    private static final double TOLERANCE = 0.02;
+
+    @Test
+    public void decimate_keepsTonesInPassband() {
+        for (int factor: FACTORS) {
+            PolyphaseResampler resampler = new PolyphaseResampler(factor, 1024);
+            // A quarter of the output bandwidth
+            double frequency = 0.125 / factor;
+            int length = 64, offset = resampler.delay() + 3;
+            int inLength = offset + (length - 1) * factor + resampler.delay() + 1;
+            float[] real = new float[inLength], imag = new float[inLength];
+            for (int i = 0; i < inLength; ++i) {
+                real[i] = (float) Math.cos(2 * Math.PI * frequency * i);
+                imag[i] = (float) Math.sin(2 * Math.PI * frequency * i);
+            }
+            float[] outReal = new float[length + 2], outImag = new float[length + 2];
+            resampler.decimate(real, imag, offset, outReal, outImag, 2, length);
+            for (int m = 0; m < length; ++m) {
+                int i = offset + m * factor;
+                assertEquals("factor " + factor, real[i], outReal[2 + m], TOLERANCE);
+                assertEquals("factor " + factor, imag[i], outImag[2 + m], TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void interpolateCyclic_keepsTonesInPassband() {
+        for (int factor: FACTORS) {
+            PolyphaseResampler resampler = new PolyphaseResampler(factor, 1024);
+            int length = 64, offset = 5;
+            // Two periodic tones well below the input Nyquist frequency
+            float[] real = new float[offset + length], imag = new float[offset + length];
+            for (int i = 0; i < length; ++i) {
+                double a = 2 * Math.PI * 3 * i / length, b = -2 * Math.PI * 7 * i / length;
+                real[offset + i] = (float) (Math.cos(a) + 0.5 * Math.cos(b));
+                imag[offset + i] = (float) (Math.sin(a) + 0.5 * Math.sin(b));
+            }
+            float[] outReal = new float[1 + length * factor];
+            float[] outImag = new float[1 + length * factor];
+            resampler.interpolateCyclic(real, imag, offset, length, outReal, outImag, 1);
+            for (int n = 0; n < length * factor; ++n) {
+                double t = (double) n / factor;
+                double a = 2 * Math.PI * 3 * t / length, b = -2 * Math.PI * 7 * t / length;
+                String message = "factor " + factor + " n = " + n;
+                assertEquals(message, Math.cos(a) + 0.5 * Math.cos(b), outReal[1 + n], TOLERANCE);
+                assertEquals(message, Math.sin(a) + 0.5 * Math.sin(b), outImag[1 + n], TOLERANCE);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package io.szp.soundmessage;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// Pruned DFT against the full FFT, on both the Goertzel and the full FFT path
+public class PrunedDFTTest {
+    private static final double TOLERANCE = 1e-5;
+
+    private static float[] random(Random random, int n) {
+        float[] result = new float[n];
+        for (int i = 0; i < n; ++i)
+            result[i] = random.nextFloat() * 2 - 1;
+        return result;
+    }
+
+    private static void checkForward(int n, int num, boolean goertzel) {
+        Random random = new Random(n * 31 + num);
+        int offset = 37;
+        float[] real = random(random, offset + n + 5), imag = random(random, offset + n + 5);
+        float[] fullReal = new float[n], fullImag = new float[n];
+        System.arraycopy(real, offset, fullReal, 0, n);
+        System.arraycopy(imag, offset, fullImag, 0, n);
+        FFT.fft(fullReal, fullImag);
+        PrunedDFT dft = new PrunedDFT(n, num);
+        assertEquals("n = " + n + " num = " + num, goertzel, dft.usesGoertzel());
+        float[] outReal = new float[num], outImag = new float[num];
+        dft.forward(real, imag, offset, outReal, outImag);
+        double scale = 1e-30, error = 0;
+        for (int k = 0; k < n; ++k)
+            scale = Math.max(scale, Math.hypot(fullReal[k], fullImag[k]));
+        for (int k = 0; k < num; ++k)
+            error = Math.max(error, Math.hypot(fullReal[k] - outReal[k],
+                    fullImag[k] - outImag[k]));
+        assertTrue("n = " + n + " num = " + num + ": relative error " + error / scale,
+                error / scale < TOLERANCE);
+    }
+
+    private static void checkInverse(int n, int[] bins, boolean goertzel) {
+        Random random = new Random(n * 17 + bins.length);
+        float[] inReal = random(random, bins.length), inImag = random(random, bins.length);
+        float[] fullReal = new float[n], fullImag = new float[n];
+        for (int i = 0; i < bins.length; ++i) {
+            fullReal[bins[i]] = inReal[i];
+            fullImag[bins[i]] = inImag[i];
+        }
+        FFT.ifft(fullReal, fullImag);
+        PrunedDFT dft = new PrunedDFT(n, bins);
+        assertEquals("n = " + n, goertzel, dft.usesGoertzel());
+        int offset = 11;
+        float[] real = new float[offset + n], imag = new float[offset + n];
+        dft.inverse(inReal, inImag, real, imag, offset);
+        double scale = 1e-30, error = 0;
+        for (int t = 0; t < n; ++t) {
+            scale = Math.max(scale, Math.hypot(fullReal[t], fullImag[t]));
+            error = Math.max(error, Math.hypot(fullReal[t] - real[offset + t],
+                    fullImag[t] - imag[offset + t]));
+        }
+        assertTrue("n = " + n + ": relative error " + error / scale, error / scale < TOLERANCE);
+    }
+
+    @Test
+    public void forward_goertzel() {
+        checkForward(2048, 6, true);
+        checkForward(2205, 6, true);
+        checkForward(512, 10, true);
+    }
+
+    @Test
+    public void forward_fullFFT() {
+        checkForward(2048, 40, false);
+        checkForward(2205, 64, false);
+        checkForward(64, 40, false);
+    }
+
+    @Test
+    public void inverse_goertzel() {
+        checkInverse(2048, new int[] { 0, 1, 2, 3, 4, 5 }, true);
+        checkInverse(1024, new int[] { 3, 100, 511, 1023 }, true);
+    }
+
+    @Test
+    public void inverse_fullFFT() {
+        int[] bins = new int[40];
+        for (int i = 0; i < bins.length; ++i)
+            bins[i] = 3 * i + 1;
+        checkInverse(2048, bins, false);
+        checkInverse(2205, bins, false);
+    }
+}